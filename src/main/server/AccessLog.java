@@ -0,0 +1,257 @@
+package main.server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <P>
+ * Writes a line for every request to a log file, with the requester, user, request code,
+ * result code, reply size and how long the request took. Each line is a JSON object.
+ * </P>
+ * <P>
+ * The main thread puts entries in a ring buffer made once at startup, and a background thread
+ * takes them out and writes them in batches, so handling a request never waits for the disk.
+ * If the writer falls so far behind that the buffer is full, new entries are dropped and counted
+ * in {@code Metrics.accessLogDropped}. The file is renamed once it reaches {@code FILE_SIZE} bytes,
+ * keeping the newest {@code FILES} old files as access.log.1, access.log.2 and so on.
+ * Entries must only be added on the main thread.
+ * </P>
+ */
+public class AccessLog {
+
+    /**
+     * The file to write to, or an empty String to not keep a log.
+     * This can be set with the server.accessLog system property.
+     */
+    public static final String FILE = System.getProperty("server.accessLog", "logs/access.log");
+    
+    /**
+     * The most entries waiting to be written, a power of 2.
+     * This can be set with the server.accessLogBuffer system property.
+     */
+    public static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("server.accessLogBuffer", 65536)));
+    
+    /**
+     * The size in bytes a log file can grow to before a new one is started
+     */
+    public static final long FILE_SIZE = 16 * 1024 * 1024;
+    
+    /**
+     * The number of old log files kept
+     */
+    public static final int FILES = 4;
+    
+    // How long the writer waits when there is nothing to write
+    private static final long IDLE_WAIT = 50;
+    
+    // One slot of each array per entry, so adding an entry never allocates
+    private static final long[] times = new long[CAPACITY];
+    private static final String[] workers = new String[CAPACITY];
+    private static final String[] usernames = new String[CAPACITY];
+    private static final String[] requests = new String[CAPACITY];
+    private static final int[] results = new int[CAPACITY];
+    private static final int[] sizes = new int[CAPACITY];
+    private static final long[] latencies = new long[CAPACITY];
+    
+    // The main thread only moves head, and the writer only moves tail
+    private static volatile long head = 0;
+    private static volatile long tail = 0;
+    
+    private static volatile boolean running = false;
+    private static Thread writer;
+    
+    /**
+     * Starts the thread that writes the log, unless there is no log file
+     */
+    public static void start() {
+        if(FILE.isEmpty()) {
+            return;
+        }
+        
+        running = true;
+        writer = new Thread(AccessLog::write, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Writes every entry that is left and stops the writer thread
+     * 
+     * @throws InterruptedException If interrupted while waiting for the writer
+     */
+    public static void stop() throws InterruptedException {
+        if(writer == null) {
+            return;
+        }
+        
+        running = false;
+        writer.join(5000);
+    }
+    
+    /**
+     * Adds an entry for a request that was replied to
+     * 
+     * @param worker The ID the requester sent the request with
+     * @param username The username of the user the requester is logged in as, or {@code null}
+     * @param request The request code as the client sent it
+     * @param reply The reply, which starts with the result code
+     * @param size The number of bytes sent back
+     * @param latency The nanoseconds from receiving the request to replying
+     */
+    public static void add(String worker, String username, String request, String reply, int size, long latency) {
+        if(!running) {
+            return;
+        }
+        
+        long position = head;
+        if(position - tail >= CAPACITY) {
+            Metrics.accessLogDropped.incrementAndGet();
+            return;
+        }
+        
+        int index = (int) (position & (CAPACITY - 1));
+        times[index] = System.currentTimeMillis();
+        workers[index] = worker;
+        usernames[index] = username;
+        requests[index] = request;
+        results[index] = resultCode(reply);
+        sizes[index] = size;
+        latencies[index] = latency;
+        
+        // Publish the entry only once every field is set
+        head = position + 1;
+    }
+    
+    private static void write() {
+        File file = Main.file(FILE);
+        if(file.getAbsoluteFile().getParentFile() != null) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        
+        Writer out = null;
+        long written = file.length();
+        StringBuilder line = new StringBuilder(256);
+        
+        try {
+            out = open(file);
+            
+            while(running || tail < head) {
+                long end = head;
+                if(tail == end) {
+                    LockSupport.parkNanos(IDLE_WAIT * 1000000);
+                    continue;
+                }
+                
+                // Write everything waiting at once, and only flush when the batch is done
+                for(long position = tail; position < end; position++) {
+                    int index = (int) (position & (CAPACITY - 1));
+                    line.setLength(0);
+                    format(index, line);
+                    
+                    // Drop the references so requesters and names that are gone can be collected
+                    workers[index] = null;
+                    usernames[index] = null;
+                    requests[index] = null;
+                    tail = position + 1;
+                    
+                    out.write(line.toString());
+                    written += line.length();
+                    
+                    if(written >= FILE_SIZE) {
+                        out.close();
+                        roll(file);
+                        out = open(file);
+                        written = 0;
+                    }
+                }
+                
+                out.flush();
+            }
+        }
+        catch(IOException e) {
+            System.out.println("Could not write access log: " + e.getMessage());
+            running = false;
+        }
+        finally {
+            if(out != null) {
+                try {
+                    out.close();
+                }
+                catch(IOException e) {
+                    System.out.println("Could not close access log: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private static void format(int index, StringBuilder line) {
+        line.append("{\"time\":").append(times[index])
+            .append(",\"worker\":");
+        appendString(line, workers[index]);
+        line.append(",\"user\":");
+        appendString(line, usernames[index]);
+        line.append(",\"request\":");
+        appendString(line, requests[index]);
+        line.append(",\"result\":").append(results[index])
+            .append(",\"bytes\":").append(sizes[index])
+            .append(",\"micros\":").append(latencies[index] / 1000)
+            .append("}\n");
+    }
+    
+    private static void appendString(StringBuilder line, String value) {
+        if(value == null) {
+            line.append("null");
+            return;
+        }
+        
+        // Usernames and worker IDs come from clients, so they can have any characters
+        line.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                line.append('\\').append(c);
+            }
+            else if(c < 0x20) {
+                line.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                line.append(c);
+            }
+        }
+        line.append('"');
+    }
+    
+    private static int resultCode(String reply) {
+        // Read the number by hand so nothing is allocated on the main thread
+        int code = 0;
+        int i = reply.startsWith("-") ? 1 : 0;
+        for(; i < reply.length() && reply.charAt(i) != '\n'; i++) {
+            char c = reply.charAt(i);
+            if(c < '0' || c > '9') {
+                return Integer.MIN_VALUE;
+            }
+            code = code * 10 + (c - '0');
+        }
+        
+        return reply.startsWith("-") ? -code : code;
+    }
+    
+    private static Writer open(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 64 * 1024);
+    }
+    
+    private static void roll(File file) {
+        // Shift every old file up by one, the oldest falls off the end
+        new File(file.getPath() + "." + FILES).delete();
+        for(int i = FILES - 1; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+        }
+        file.renameTo(new File(file.getPath() + ".1"));
+    }
+}
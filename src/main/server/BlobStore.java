@@ -0,0 +1,220 @@
+package main.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <P>
+ * Keeps large pieces of data, like profile pictures, on disk by the SHA-256 hash of their
+ * contents. Data with the same contents is only kept once, no matter how many users use it.
+ * </P>
+ * <P>
+ * The most recently used blobs are also kept in memory, up to {@code CACHE_SIZE} bytes in total.
+ * Blobs are never changed once written, so a hash always refers to the same data.
+ * This must only be used on the main thread, except for {@code write}.
+ * </P>
+ * <P>
+ * Chunks of blobs that aren't in memory are read on a background thread,
+ * so sending a large picture never makes the main thread wait on the disk.
+ * </P>
+ */
+public class BlobStore {
+
+    /**
+     * The folder that blob files are kept in
+     */
+    public static final File DIRECTORY = Main.file("blobs");
+    
+    /**
+     * The most bytes of blobs kept in memory.
+     * This can be set with the server.blobCache system property.
+     */
+    public static final long CACHE_SIZE = Long.getLong("server.blobCache", 16 * 1024 * 1024);
+    
+    /**
+     * The most bytes sent or received in one chunk of a transfer
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    
+    /**
+     * The largest blob that can be uploaded
+     */
+    public static final int MAX_SIZE = 8 * 1024 * 1024;
+    
+    // Chunks are read on their own thread, one at a time
+    private static final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "blob-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Least recently used first
+    private static final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private static long cached = 0;
+    
+    /**
+     * Stores data, unless data with the same contents is already stored
+     * 
+     * @param data The data to store, which must not be changed afterwards
+     * @return The hash the data can be found by
+     * @throws IOException If the data couldn't be written to disk
+     */
+    public static String put(byte[] data) throws IOException {
+        String hash = write(data);
+        cache(hash, data);
+        return hash;
+    }
+    
+    /**
+     * Stores data on disk without keeping it in memory, so it can be called from any thread.
+     * It is read from disk the first time it is asked for.
+     * 
+     * @param data The data to store, which must not be changed afterwards
+     * @return The hash the data can be found by
+     * @throws IOException If the data couldn't be written to disk
+     */
+    public static String write(byte[] data) throws IOException {
+        String hash = hash(data);
+        File file = file(hash);
+        
+        if(!file.exists()) {
+            // Write to a temporary file first so a crash never leaves a broken blob behind, each thread uses its own
+            DIRECTORY.mkdirs();
+            File temporary = new File(DIRECTORY, hash + "." + Thread.currentThread().getId() + ".tmp");
+            Files.write(temporary.toPath(), data);
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        
+        return hash;
+    }
+    
+    /**
+     * Gets stored data
+     * 
+     * @param hash The hash of the data
+     * @return The data, which must not be changed
+     * @throws IOException If there is no data with the hash, or it couldn't be read
+     */
+    public static byte[] get(String hash) throws IOException {
+        byte[] data = cache.get(hash);
+        if(data != null) {
+            return data;
+        }
+        
+        data = Files.readAllBytes(file(hash).toPath());
+        cache(hash, data);
+        return data;
+    }
+    
+    /**
+     * Gets the size of stored data without reading it
+     * 
+     * @param hash The hash of the data
+     * @return The number of bytes in the data
+     * @throws IOException If there is no data with the hash
+     */
+    public static long size(String hash) throws IOException {
+        byte[] data = cache.get(hash);
+        if(data != null) {
+            return data.length;
+        }
+        
+        File file = file(hash);
+        if(!file.isFile()) {
+            throw new IOException("No blob " + hash);
+        }
+        
+        return file.length();
+    }
+    
+    /**
+     * Starts reading up to {@code CHUNK_SIZE} bytes of stored data. Data kept in memory is
+     * ready right away, anything else is read from disk on a background thread.
+     * 
+     * @param hash The hash of the data
+     * @param offset The first byte to read
+     * @return The bytes read, which fail with an {@code IOException} if they couldn't be read
+     * @throws IOException If the hash isn't a blob hash
+     */
+    public static Future<byte[]> readChunk(String hash, long offset) throws IOException {
+        byte[] data = cache.get(hash);
+        if(data != null) {
+            int start = (int) Math.min(offset, data.length);
+            return CompletableFuture.completedFuture(Arrays.copyOfRange(data, start, Math.min(data.length, start + CHUNK_SIZE)));
+        }
+        
+        File file = file(hash);
+        return io.submit(() -> read(file, offset));
+    }
+    
+    // Runs on the blob thread
+    private static byte[] read(File file, long offset) throws IOException {
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer chunk = ByteBuffer.allocate((int) Math.max(0, Math.min(CHUNK_SIZE, channel.size() - offset)));
+            
+            // Positional reads don't move the channel, so each one says where it starts
+            while(chunk.hasRemaining()) {
+                if(channel.read(chunk, offset + chunk.position()) < 0) {
+                    throw new IOException("Blob ended early");
+                }
+            }
+            
+            return chunk.array();
+        }
+    }
+    
+    private static void cache(String hash, byte[] data) {
+        // Blobs bigger than the whole cache are always read from disk
+        if(data.length > CACHE_SIZE || cache.containsKey(hash)) {
+            return;
+        }
+        
+        cache.put(hash, data);
+        cached += data.length;
+        
+        Iterator<Map.Entry<String, byte[]>> iterator = cache.entrySet().iterator();
+        while(cached > CACHE_SIZE) {
+            cached -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+    
+    private static File file(String hash) throws IOException {
+        // Hashes come from clients, so make sure they can't point outside the folder
+        if(!hash.matches("[0-9a-f]{64}")) {
+            throw new IOException("Not a blob hash");
+        }
+        
+        return new File(DIRECTORY, hash);
+    }
+    
+    private static String hash(byte[] data) {
+        try {
+            StringBuilder hash = new StringBuilder();
+            for(byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                hash.append(String.format("%02x", b));
+            }
+            
+            return hash.toString();
+        }
+        catch(NoSuchAlgorithmException e) {
+            // Every Java platform has to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
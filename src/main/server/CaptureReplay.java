@@ -0,0 +1,144 @@
+package main.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <P>
+ * Sends the requests and commands in a capture file from {@code RequestCapture} through the
+ * server again, without any sockets, and reports how fast they were handled. Running the same
+ * capture against two builds shows whether a change made the server slower.
+ * </P>
+ * <P>
+ * The replay runs on this thread in the same way as the main thread of the server, so it
+ * restores the snapshot, writes history and mailboxes and handles requests with the same settings.
+ * It should be run in a copy of the folder the server was started from, so it starts from the same
+ * state as the capture did. By default records are sent at the pace they were captured at, and with
+ * "fast" they are sent as fast as they are handled, which may need the rate limits turned off.
+ * Session tokens are new on every run, so captured resume requests fail.
+ * </P>
+ * <P>
+ * Usage: CaptureReplay &lt;capture file&gt; [fast]
+ * </P>
+ */
+public class CaptureReplay {
+
+    /**
+     * Runs the replay
+     * 
+     * @param args The capture file and whether to replay as fast as possible
+     * @throws IOException If the capture can't be read
+     * @throws InterruptedException If interrupted while finishing writing history
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length < 1) {
+            System.out.println("Usage: CaptureReplay <capture file> [fast]");
+            return;
+        }
+        
+        boolean fast = args.length > 1 && args[1].equalsIgnoreCase("fast");
+        
+        // Read everything first so reading the file isn't measured
+        List<RequestCapture.Record> records = new ArrayList<>();
+        try(RequestCapture.Reader reader = new RequestCapture.Reader(new File(args[0]))) {
+            RequestCapture.Record record;
+            while((record = reader.next()) != null) {
+                records.add(record);
+            }
+        }
+        
+        if(Snapshot.restore(Snapshot.FILE)) {
+            Main.publishSnapshots();
+            System.out.println("Restored " + Main.chats.size() + " chats and " + Main.profiles.size() + " profiles");
+        }
+        
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+                                                      ? (com.sun.management.ThreadMXBean) threads : null;
+        long thread = Thread.currentThread().getId();
+        
+        long[] latencies = new long[records.size()];
+        int requests = 0;
+        long allocatedBefore = allocations != null ? allocations.getThreadAllocatedBytes(thread) : 0;
+        long[] collectionsBefore = collections();
+        long begin = System.nanoTime();
+        
+        for(RequestCapture.Record record : records) {
+            // Keep running posted work while waiting, like the main loop does between requests
+            if(!fast) {
+                long due = begin + record.time * 1000;
+                while(System.nanoTime() < due) {
+                    Main.runCommands();
+                }
+            }
+            Main.runCommands();
+            
+            long start = System.nanoTime();
+            if(record.kind == RequestCapture.REQUEST) {
+                Main.handleRequest(record.request, record.payload, start, true);
+                latencies[requests++] = System.nanoTime() - start;
+            }
+            else {
+                // Stopping would end the replay early, so it is left out
+                String command = new String(record.request, StandardCharsets.UTF_8);
+                if(!command.trim().equalsIgnoreCase("/stop")) {
+                    Main.handleCommand(command);
+                }
+            }
+            Main.publishSnapshots();
+        }
+        Main.runCommands();
+        
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        long allocated = allocations != null ? allocations.getThreadAllocatedBytes(thread) - allocatedBefore : -1;
+        long[] collectionsAfter = collections();
+        
+        latencies = Arrays.copyOf(latencies, requests);
+        Arrays.sort(latencies);
+        
+        System.out.println(requests + " requests and " + (records.size() - requests) + " commands"
+                         + (fast ? " as fast as possible" : " at the captured pace"));
+        System.out.printf("Time:        %.2f s%n", elapsed);
+        System.out.printf("Throughput:  %.0f requests/s%n", requests / elapsed);
+        System.out.printf("Latency:     p50 %d us, p90 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+                          percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                          percentile(latencies, 0.999), percentile(latencies, 1));
+        if(allocated >= 0) {
+            System.out.printf("Allocated:   %d bytes on the main thread (%.0f bytes/request, %.1f MB/s)%n",
+                              allocated, (double) allocated / Math.max(1, requests), allocated / elapsed / (1024 * 1024));
+        }
+        System.out.println("Collections: " + (collectionsAfter[0] - collectionsBefore[0]) + " taking "
+                         + (collectionsAfter[1] - collectionsBefore[1]) + " ms");
+        
+        Requestor.stopAllTimers();
+        ChatHistory.shutdown();
+        System.exit(0);
+    }
+    
+    private static long percentile(long[] sorted, double fraction) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000;
+    }
+    
+    private static long[] collections() {
+        long count = 0;
+        long time = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        
+        return new long[] {count, time};
+    }
+}
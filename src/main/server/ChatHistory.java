@@ -0,0 +1,495 @@
+package main.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * <P>
+ * Stores the messages sent to a chat so that clients can page back through them.
+ * </P>
+ * <P>
+ * The newest messages are kept in memory so most history requests never touch the disk.
+ * Every message is also appended to a file for the chat, and a sparse index of every
+ * {@code INDEX_INTERVAL}th sequence number and timestamp is kept so older pages can be
+ * found without reading the whole file.
+ * </P>
+ * <P>
+ * All disk access happens on a single background thread. If a page isn't in memory
+ * the load is started and the requester is told to try again, so the main request
+ * loop never waits on the disk.
+ * </P>
+ */
+public class ChatHistory {
+
+    /**
+     * The number of newest messages kept in memory for each chat
+     */
+    public static final int TAIL_SIZE = 256;
+    
+    /**
+     * The number of messages between each entry in the sparse index
+     */
+    public static final int INDEX_INTERVAL = 64;
+    
+    /**
+     * The most messages that can be requested in a single page
+     */
+    public static final int MAX_PAGE_SIZE = 100;
+    
+    /**
+     * The most disk reads that can be waiting to be picked up for a single chat
+     */
+    private static final int MAX_PENDING_PAGES = 16;
+    
+    /**
+     * The folder that history files are kept in
+     */
+    public static final File DIRECTORY = Main.file("history");
+    
+    // Only one thread touches the files, so they never need to be locked
+    private static final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "history-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * Waits for all queued history writes to finish so nothing is lost on shutdown
+     */
+    public static void shutdown() {
+        io.shutdown();
+        
+        try {
+            io.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * A single message in a chat's history. Unlike {@code Message}, this only holds
+     * the username of the sender, so it can be read back from disk after the sender logged out.
+     */
+    public static class Entry {
+        
+        /**
+         * The position of the message in the chat, starting at 0
+         */
+        public final long sequence;
+        
+        /**
+         * The time the server received the message in milliseconds since the epoch
+         */
+        public final long timestamp;
+        
+        /**
+         * The username of the sender
+         */
+        public final String from;
+        
+        /**
+         * The contents of the message
+         */
+        public final String message;
+        
+        /**
+         * Constructs a history entry
+         * 
+         * @param sequence The position of the message in the chat
+         * @param timestamp The time the server received the message
+         * @param from The username of the sender
+         * @param message The contents of the message
+         */
+        public Entry(long sequence, long timestamp, String from, String message) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.from = from;
+            this.message = message;
+        }
+    }
+    
+    // Owned by the main thread
+    private final ArrayDeque<Entry> tail = new ArrayDeque<>();
+    private long nextSequence = 0;
+    
+    // Disk reads that have been started, by first sequence number and size
+    private final Map<String, Future<List<Entry>>> pendingPages = new LinkedHashMap<String, Future<List<Entry>>>() {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Future<List<ChatHistory.Entry>>> eldest) {
+            return size() > MAX_PENDING_PAGES;
+        }
+    };
+    
+    // Owned by the history thread
+    private final File file;
+    private DataOutputStream out;
+    private long length = 0;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream record = new DataOutputStream(buffer);
+    private long[] indexSequences = new long[16];
+    private long[] indexTimestamps = new long[16];
+    private long[] indexOffsets = new long[16];
+    private int indexSize = 0;
+    
+    /**
+     * Creates an empty history for a chat. Any old history left on disk for the
+     * same chat ID is thrown away.
+     * 
+     * @param chatId The ID of the chat this history belongs to
+     */
+    public ChatHistory(int chatId) {
+        this(chatId, 0);
+    }
+    
+    /**
+     * Opens the history of a chat restored from a snapshot. The index is rebuilt in the background.
+     * Messages on disk from after the snapshot are thrown away, because their sequence numbers will be given out again.
+     * 
+     * @param chatId The ID of the chat this history belongs to
+     * @param nextSequence The sequence number that the next message will be given
+     */
+    public ChatHistory(int chatId, long nextSequence) {
+        this.nextSequence = nextSequence;
+        file = new File(DIRECTORY, chatId + ".dat");
+        
+        io.execute(() -> {
+            try {
+                DIRECTORY.mkdirs();
+                
+                if(nextSequence > 0) {
+                    rebuildIndex(nextSequence);
+                }
+                
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, nextSequence > 0)));
+            }
+            catch(IOException e) {
+                System.out.println("Could not open history file " + file);
+            }
+        });
+    }
+    
+    /**
+     * Adds a message to the end of the history. Messages must be added in the
+     * order of their sequence numbers, without gaps.
+     * 
+     * @param message The message sent to the chat
+     */
+    public void add(Message message) {
+        Entry entry = new Entry(message.sequence, message.timestamp, message.getFrom(), message.getMessage());
+        nextSequence = message.sequence + 1;
+        
+        // Keep the newest messages in memory for quick reads
+        tail.addLast(entry);
+        if(tail.size() > TAIL_SIZE) {
+            tail.removeFirst();
+        }
+        
+        io.execute(() -> write(entry));
+    }
+    
+    /**
+     * Gets a page of messages sent before a cursor, oldest first. If the page is
+     * not in memory, it is loaded in the background and {@code null} is returned.
+     * Asking for the same page again will return it once it has loaded.
+     * 
+     * @param before Only messages before this are returned. This is a sequence number, or a
+     * time in milliseconds since the epoch if {@code byTime} is set. A negative number means the newest messages.
+     * @param byTime Whether {@code before} is a time instead of a sequence number
+     * @param limit The most messages to return
+     * @return The messages, or {@code null} if they are still loading
+     * @throws IOException If the messages could not be read from disk
+     */
+    public List<Entry> getPage(long before, boolean byTime, int limit) throws IOException {
+        limit = Math.max(0, Math.min(limit, MAX_PAGE_SIZE));
+        
+        if(before < 0) {
+            before = nextSequence;
+            byTime = false;
+        }
+        
+        // Times can be turned into sequence numbers in memory if they are recent enough
+        if(byTime && !tail.isEmpty() && tail.peekFirst().timestamp < before) {
+            long sequence = nextSequence;
+            for(Entry entry : tail) {
+                if(entry.timestamp >= before) {
+                    sequence = entry.sequence;
+                    break;
+                }
+            }
+            
+            before = sequence;
+            byTime = false;
+        }
+        
+        if(!byTime) {
+            before = Math.min(before, nextSequence);
+            long start = Math.max(0, before - limit);
+            
+            // Serve from memory if the whole page is there
+            long memoryStart = tail.isEmpty() ? nextSequence : tail.peekFirst().sequence;
+            if(start >= memoryStart) {
+                List<Entry> page = new ArrayList<>();
+                for(Entry entry : tail) {
+                    if(entry.sequence >= start && entry.sequence < before) {
+                        page.add(entry);
+                    }
+                }
+                
+                return page;
+            }
+        }
+        
+        String key = (byTime ? "t" : "s") + before + ":" + limit;
+        Future<List<Entry>> page = pendingPages.get(key);
+        
+        if(page == null) {
+            // Start loading the page, the requester will ask again later
+            long cursor = before;
+            boolean time = byTime;
+            int size = limit;
+            pendingPages.put(key, io.submit(() -> read(cursor, time, size)));
+            return null;
+        }
+        if(!page.isDone()) {
+            return null;
+        }
+        
+        pendingPages.remove(key);
+        
+        try {
+            return page.get();
+        }
+        catch(InterruptedException | ExecutionException e) {
+            throw new IOException(e);
+        }
+    }
+    
+    /**
+     * Removes the history from disk when the chat is removed
+     */
+    public void delete() {
+        tail.clear();
+        pendingPages.clear();
+        
+        io.execute(() -> {
+            try {
+                if(out != null) {
+                    out.close();
+                    out = null;
+                }
+            }
+            catch(IOException e) {
+                // The file is being deleted anyway
+            }
+            
+            file.delete();
+        });
+    }
+    
+    // Runs on the history thread
+    private void write(Entry entry) {
+        if(out == null) {
+            return;
+        }
+        
+        try {
+            addIndex(entry.sequence, entry.timestamp, length);
+            
+            // Write to a buffer first so the size of the entry is known
+            buffer.reset();
+            record.writeLong(entry.sequence);
+            record.writeLong(entry.timestamp);
+            record.writeUTF(entry.from);
+            record.writeUTF(entry.message);
+            
+            buffer.writeTo(out);
+            out.flush();
+            length += buffer.size();
+        }
+        catch(IOException e) {
+            System.out.println("Could not write history file " + file);
+        }
+    }
+    
+    // Runs on the history thread
+    private List<Entry> read(long before, boolean byTime, int limit) throws IOException {
+        List<Entry> page = new ArrayList<>();
+        if(indexSize == 0) {
+            return page;
+        }
+        
+        try(RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if(byTime) {
+                // Find the last indexed message sent before the time, then scan forward to the first one after it
+                int slot = Arrays.binarySearch(indexTimestamps, 0, indexSize, before);
+                slot = slot >= 0 ? slot : -slot - 2;
+                
+                long sequence = slot < 0 ? 0 : indexSequences[slot];
+                if(slot >= 0) {
+                    in.seek(indexOffsets[slot]);
+                    
+                    while(in.getFilePointer() < in.length()) {
+                        Entry entry = readEntry(in);
+                        if(entry.timestamp >= before) {
+                            break;
+                        }
+                        sequence = entry.sequence + 1;
+                    }
+                }
+                
+                before = sequence;
+            }
+            
+            long start = Math.max(0, before - limit);
+            
+            // Find the last indexed message at or before the start of the page
+            int slot = Arrays.binarySearch(indexSequences, 0, indexSize, start);
+            slot = Math.max(0, slot >= 0 ? slot : -slot - 2);
+            in.seek(indexOffsets[slot]);
+            
+            while(in.getFilePointer() < in.length()) {
+                Entry entry = readEntry(in);
+                if(entry.sequence >= before) {
+                    break;
+                }
+                if(entry.sequence >= start) {
+                    page.add(entry);
+                }
+            }
+        }
+        
+        return page;
+    }
+    
+    // Runs on the history thread
+    private void rebuildIndex(long nextSequence) throws IOException {
+        if(!file.exists()) {
+            return;
+        }
+        
+        long fileLength = file.length();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while(true) {
+                long sequence;
+                long timestamp;
+                int size;
+                
+                try {
+                    sequence = in.readLong();
+                    timestamp = in.readLong();
+                    
+                    // Skip the text without decoding it
+                    int fromLength = in.readUnsignedShort();
+                    if(in.skipBytes(fromLength) < fromLength) {
+                        break;
+                    }
+                    int messageLength = in.readUnsignedShort();
+                    if(in.skipBytes(messageLength) < messageLength) {
+                        break;
+                    }
+                    
+                    size = 20 + fromLength + messageLength;
+                }
+                catch(EOFException e) {
+                    // A partly written entry at the end is thrown away
+                    break;
+                }
+                
+                // Skipping can go past the end of the file, so check the entry really fits
+                if(sequence >= nextSequence || length + size > fileLength) {
+                    break;
+                }
+                
+                addIndex(sequence, timestamp, length);
+                length += size;
+            }
+        }
+        
+        // Cut off anything after the last good entry
+        try(RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+            truncate.setLength(length);
+        }
+    }
+    
+    // Runs on the history thread
+    private void addIndex(long sequence, long timestamp, long offset) {
+        // Index every INDEX_INTERVAL messages so a read never scans more than that many entries
+        if(sequence % INDEX_INTERVAL != 0) {
+            return;
+        }
+        
+        if(indexSize == indexSequences.length) {
+            indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+            indexTimestamps = Arrays.copyOf(indexTimestamps, indexSize * 2);
+            indexOffsets = Arrays.copyOf(indexOffsets, indexSize * 2);
+        }
+        
+        indexSequences[indexSize] = sequence;
+        indexTimestamps[indexSize] = timestamp;
+        indexOffsets[indexSize] = offset;
+        indexSize++;
+    }
+    
+    /**
+     * Reads every message in a chat's history file in order, such as to rebuild a search index.
+     * This opens the file separately, so it can run on any thread.
+     * 
+     * @param chatId The ID of the chat
+     * @param nextSequence Messages from this sequence number on are ignored
+     * @param consumer Called with each message
+     * @throws IOException If the file couldn't be read
+     */
+    public static void readAll(int chatId, long nextSequence, Consumer<Entry> consumer) throws IOException {
+        File file = new File(DIRECTORY, chatId + ".dat");
+        if(!file.exists()) {
+            return;
+        }
+        
+        long fileLength = file.length();
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while(true) {
+                Entry entry;
+                try {
+                    entry = new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+                }
+                catch(EOFException e) {
+                    return;
+                }
+                
+                if(entry.sequence >= nextSequence) {
+                    return;
+                }
+                
+                consumer.accept(entry);
+            }
+        }
+    }
+    
+    private static Entry readEntry(RandomAccessFile in) throws IOException {
+        return new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readUTF());
+    }
+}
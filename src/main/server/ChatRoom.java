@@ -1,7 +1,11 @@
 package main.server;
 
+import java.util.HashSet;
+import java.util.Set;
+
 /**
- * A global group chat that all users are a part of
+ * A group chat that any user can find and join.
+ * Messages and updates about the chat are only given to its members.
  */
 public class ChatRoom {
     
@@ -16,6 +20,27 @@ public class ChatRoom {
      */
     public final String name;
     
+    /**
+     * The messages that have been sent to the chat
+     */
+    public final ChatHistory history;
+    
+    /**
+     * The words in the messages that have been sent to the chat
+     */
+    public final SearchIndex search;
+    
+    /**
+     * Gives out sequence numbers for messages sent to the chat
+     */
+    public final SequenceCounter sequence;
+    
+    /**
+     * The usernames of the users that joined the chat.
+     * Users stay members after logging out, until they leave the chat.
+     */
+    public final Set<String> members = new HashSet<>();
+    
     /**
      * Constructs the group chat
      * 
@@ -25,5 +50,24 @@ public class ChatRoom {
     public ChatRoom(int id, String name) {
         this.id = id;
         this.name = name;
+        this.history = new ChatHistory(id);
+        this.search = new SearchIndex(id);
+        this.sequence = new SequenceCounter();
+    }
+    
+    /**
+     * Constructs a group chat restored from a snapshot
+     * 
+     * @param id The unique ID of the chatroom
+     * @param name The name of the chatroom
+     * @param nextSequence The sequence number that the next message will be given
+     * @param timestamp The timestamp of the last message
+     */
+    public ChatRoom(int id, String name, long nextSequence, long timestamp) {
+        this.id = id;
+        this.name = name;
+        this.history = new ChatHistory(id, nextSequence);
+        this.search = new SearchIndex(id, nextSequence);
+        this.sequence = new SequenceCounter(nextSequence, timestamp);
     }
 }
@@ -0,0 +1,590 @@
+package main.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.zeromq.ZMQ;
+
+/**
+ * <P>
+ * Lets several servers share users and chats. Each server is a node, and every node
+ * publishes events on a ZeroMQ PUB socket that all other nodes subscribe to.
+ * Events are either sent to all nodes, or to a single node.
+ * </P>
+ * <P>
+ * Every chat is owned by one node, picked by consistent hashing of its ID. The owner gives
+ * out sequence numbers for the chat and sends every message to all other nodes, so each node
+ * can keep a copy of the history. Messages sent to a chat on another node are forwarded to
+ * its owner first. Direct messages are forwarded to the node the recipient is logged in on.
+ * </P>
+ * <P>
+ * Nodes tell each other when users log in and out, and also send their full list of users,
+ * and of owned chats with their members, every {@code HEARTBEAT} milliseconds, so events lost
+ * on the way, nodes that start late, and nodes that stop are all fixed up.
+ * </P>
+ * <P>
+ * Clustering is turned on by setting server.cluster.nodes to the bus address of every node,
+ * separated by commas, and server.cluster.self to the index of this node in that list.
+ * Every node must be given the same list.
+ * </P>
+ */
+public class Cluster {
+
+    /**
+     * The bus addresses of all nodes, such as tcp://127.0.0.1:9001 or ipc:///tmp/node0
+     */
+    public static final String[] NODES = System.getProperty("server.cluster.nodes", "").isEmpty()
+                                       ? new String[0] : System.getProperty("server.cluster.nodes").split(",");
+    
+    /**
+     * The index of this node in {@code NODES}
+     */
+    public static final int SELF = Integer.getInteger("server.cluster.self", 0);
+    
+    /**
+     * Whether there is more than one node
+     */
+    public static final boolean ENABLED = NODES.length > 1;
+    
+    /**
+     * Milliseconds between each node sending its full list of users and chats
+     */
+    public static final long HEARTBEAT = 1000;
+    
+    /**
+     * A node that hasn't been heard from in this many heartbeats is treated as stopped
+     */
+    private static final int MISSED_HEARTBEATS = 5;
+    
+    /**
+     * The number of points each node has on the hash ring, so chats are spread out evenly
+     */
+    private static final int VIRTUAL_NODES = 64;
+    
+    /**
+     * The most events handled in one go, so clients still get served while the bus is busy
+     */
+    private static final int MAX_EVENTS_PER_POLL = 1000;
+    
+    private static final TreeMap<Integer, Integer> ring = new TreeMap<>();
+    
+    static {
+        for(int node = 0; node < NODES.length; node++) {
+            for(int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(mix((NODES[node] + "#" + i).hashCode()), node);
+            }
+        }
+    }
+    
+    // Everything below is only used on the main thread
+    private static ZMQ.Socket publisher;
+    private static ZMQ.Socket subscriber;
+    private static long[] lastSeen;
+    private static long nextHeartbeat = 0;
+    private static boolean applyingRemote = false;
+    
+    // Users logged in on other nodes
+    private static final Map<String, User> remoteUsers = new HashMap<>();
+    private static final Map<String, Integer> remoteNodes = new HashMap<>();
+    private static final List<User> remoteList = new ArrayList<>();
+    
+    /**
+     * Opens the bus sockets. Does nothing if clustering is off.
+     * 
+     * @param context The ZeroMQ context to make sockets with
+     */
+    public static void start(ZMQ.Context context) {
+        if(!ENABLED) {
+            return;
+        }
+        
+        publisher = context.socket(ZMQ.PUB);
+        publisher.bind(NODES[SELF]);
+        
+        subscriber = context.socket(ZMQ.SUB);
+        subscriber.subscribe("all".getBytes());
+        subscriber.subscribe(("node" + SELF + "\n").getBytes());
+        for(int node = 0; node < NODES.length; node++) {
+            if(node != SELF) {
+                subscriber.connect(NODES[node]);
+            }
+        }
+        
+        lastSeen = new long[NODES.length];
+        System.out.println("Cluster node " + SELF + " of " + NODES.length + " on " + NODES[SELF]);
+    }
+    
+    /**
+     * Tells the other nodes this node has no users any more, and closes the bus sockets
+     */
+    public static void stop() {
+        if(!ENABLED) {
+            return;
+        }
+        
+        publish("all", "ROSTER\n" + SELF);
+        publisher.close();
+        subscriber.close();
+    }
+    
+    /**
+     * Handles events from other nodes and sends heartbeats. This is called every main loop.
+     */
+    public static void poll() {
+        if(!ENABLED) {
+            return;
+        }
+        
+        for(int i = 0; i < MAX_EVENTS_PER_POLL; i++) {
+            String topic = subscriber.recvStr(ZMQ.DONTWAIT);
+            if(topic == null) {
+                break;
+            }
+            
+            String event = subscriber.recvStr();
+            try {
+                handle(event.split("\n", -1));
+            }
+            catch(RuntimeException e) {
+                // A bad event from one node shouldn't stop the main loop, so it is dropped
+                System.out.println("Dropped bad cluster event: " + e);
+            }
+        }
+        
+        long now = System.currentTimeMillis();
+        if(now >= nextHeartbeat) {
+            nextHeartbeat = now + HEARTBEAT;
+            sendHeartbeat();
+            dropStoppedNodes(now);
+        }
+    }
+    
+    /**
+     * Finds the node that owns a chat
+     * 
+     * @param chatId The ID of the chat
+     * @return The index of the owning node
+     */
+    public static int ownerOf(int chatId) {
+        Map.Entry<Integer, Integer> entry = ring.ceilingEntry(mix(chatId));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+    
+    /**
+     * Checks if this node owns a chat. This is always true when clustering is off.
+     * 
+     * @param chatId The ID of the chat
+     * @return Whether this node owns the chat
+     */
+    public static boolean ownsChat(int chatId) {
+        return !ENABLED || ownerOf(chatId) == SELF;
+    }
+    
+    /**
+     * Finds the lowest unused chat ID that this node owns, so new chats never clash with other nodes
+     * 
+     * @param used The chat IDs that are already used
+     * @return The ID for a new chat
+     */
+    public static int nextOwnedChatId(BitSet used) {
+        int id = used.nextClearBit(0);
+        while(!ownsChat(id)) {
+            id = used.nextClearBit(id + 1);
+        }
+        
+        return id;
+    }
+    
+    /**
+     * Checks whether the server is applying an event from another node,
+     * in which case the change must not be sent back out
+     * 
+     * @return Whether a remote event is being applied
+     */
+    public static boolean isApplyingRemote() {
+        return applyingRemote;
+    }
+    
+    /**
+     * Checks if a user is logged in on another node
+     * 
+     * @param username The username of the user
+     * @return Whether the user is logged in elsewhere
+     */
+    public static boolean hasRemoteUser(String username) {
+        return remoteUsers.containsKey(username);
+    }
+    
+    /**
+     * Gets a user logged in on another node
+     * 
+     * @param username The username of the user
+     * @return The placeholder for the user, or {@code null}
+     */
+    public static User getRemoteUser(String username) {
+        return remoteUsers.get(username);
+    }
+    
+    /**
+     * Gets the number of users logged in on other nodes
+     * 
+     * @return The number of remote users
+     */
+    public static int remoteUserCount() {
+        return remoteList.size();
+    }
+    
+    /**
+     * Gets a user logged in on another node by index
+     * 
+     * @param index The index, from 0 to {@code remoteUserCount()}
+     * @return The placeholder for the user
+     * @throws IndexOutOfBoundsException If the index is out of range
+     */
+    public static User getRemoteUser(int index) throws IndexOutOfBoundsException {
+        return remoteList.get(index);
+    }
+    
+    /**
+     * Tells all other nodes about an update to a user logged in on this node
+     * 
+     * @param user The user that has an update
+     * @param update The update
+     */
+    public static void publishUserUpdate(User user, int update) {
+        publish("all", "USER\n" + SELF + "\n" + update + "\n" + user.username + "\n" + user.nickname);
+    }
+    
+    /**
+     * Tells all other nodes about a chat being added or removed
+     * 
+     * @param chat The chat that has an update
+     * @param update The update
+     */
+    public static void publishChatUpdate(ChatRoom chat, int update) {
+        publish("all", "CHAT\n" + SELF + "\n" + update + "\n" + chat.id + "\n" + chat.name);
+    }
+    
+    /**
+     * Tells all other nodes about a user joining or leaving a chat
+     * 
+     * @param chat The chat that was joined or left
+     * @param username The username of the user
+     * @param joined Whether the user joined rather than left
+     */
+    public static void publishMembership(ChatRoom chat, String username, boolean joined) {
+        publish("all", "MEMBER\n" + SELF + "\n" + chat.id + "\n" + username + "\n" + joined);
+    }
+    
+    /**
+     * Sends a message for a chat this node owns to all other nodes
+     * 
+     * @param message The message, with its sequence number
+     */
+    public static void publishChatMessage(Message message) {
+        publish("all", "CHAT_MESSAGE\n" + SELF + "\n" + message.getFrom() + "\n" + message.getChatId() + "\n"
+                     + message.getMessage() + "\n" + message.sequence + "\n" + message.timestamp);
+    }
+    
+    /**
+     * Sends a message for a chat owned by another node to that node, which will give it a sequence number
+     * 
+     * @param from The user that sent the message
+     * @param chat The chat the message is for
+     * @param text The contents of the message
+     */
+    public static void forwardChatMessage(User from, ChatRoom chat, String text) {
+        publish("node" + ownerOf(chat.id) + "\n", "SEND_CHAT\n" + SELF + "\n" + from.username + "\n" + chat.id + "\n" + text);
+    }
+    
+    /**
+     * Sends a direct message to the node the recipient is logged in on
+     * 
+     * @param from The user that sent the message
+     * @param to The username of the recipient, who must be a remote user
+     * @param text The contents of the message
+     */
+    public static void forwardDirectMessage(User from, String to, String text) {
+        publish("node" + remoteNodes.get(to) + "\n", "DIRECT\n" + SELF + "\n" + from.username + "\n" + to + "\n" + text);
+    }
+    
+    /**
+     * Sends a typing or read event to the nodes with users that should get it
+     * 
+     * @param from The username of the user the event is from
+     * @param chatId The ID of the chat the event is for, or -1 if it is for a user
+     * @param to The username of the user the event is for, or {@code null} if it is for a chat
+     * @param kind The kind of event
+     * @param value The value of the event
+     * @param timestamp The time the event was received
+     */
+    public static void publishEvent(String from, int chatId, String to, int kind, long value, long timestamp) {
+        String topic = to == null ? "all" : "node" + remoteNodes.get(to) + "\n";
+        publish(topic, "EVENT\n" + SELF + "\n" + from + "\n" + chatId + "\n" + (to == null ? "" : to) + "\n"
+                     + kind + "\n" + value + "\n" + timestamp);
+    }
+    
+    private static void publish(String topic, String event) {
+        publisher.sendMore(topic);
+        publisher.send(event);
+    }
+    
+    private static void sendHeartbeat() {
+        StringBuilder roster = new StringBuilder("ROSTER\n" + SELF);
+        for(User user : Main.users) {
+            roster.append('\n').append(user.username).append('\n').append(user.nickname);
+        }
+        publish("all", roster.toString());
+        
+        StringBuilder chats = new StringBuilder("CHATS\n" + SELF);
+        for(ChatRoom chat : Main.chats) {
+            if(ownsChat(chat.id)) {
+                chats.append('\n').append(chat.id).append('\n').append(chat.name).append('\n').append(chat.members.size());
+                for(String member : chat.members) {
+                    chats.append('\n').append(member);
+                }
+            }
+        }
+        publish("all", chats.toString());
+    }
+    
+    private static void dropStoppedNodes(long now) {
+        for(int node = 0; node < NODES.length; node++) {
+            if(node != SELF && lastSeen[node] > 0 && now - lastSeen[node] > HEARTBEAT * MISSED_HEARTBEATS) {
+                lastSeen[node] = 0;
+                System.out.println("Lost contact with cluster node " + node);
+                
+                applyingRemote = true;
+                try {
+                    reconcileUsers(node, Collections.emptyMap());
+                }
+                finally {
+                    applyingRemote = false;
+                }
+            }
+        }
+    }
+    
+    private static void handle(String[] event) {
+        int node = Integer.parseInt(event[1]);
+        lastSeen[node] = System.currentTimeMillis();
+        
+        // Anything changed here came from another node, so it shouldn't be sent back out
+        applyingRemote = true;
+        try {
+            switch(event[0]) {
+                case "USER": {
+                    int update = Integer.parseInt(event[2]);
+                    String username = event[3];
+                    
+                    if(update == Requestor.CHANGE_CONNECTED) {
+                        addRemoteUser(node, username, event[4]);
+                    }
+                    else if(update == Requestor.CHANGE_DISCONNECTED) {
+                        removeRemoteUser(username);
+                    }
+                    else if(remoteUsers.containsKey(username)) {
+                        User user = remoteUsers.get(username);
+                        user.nickname = event[4];
+                        Main.distributeUserUpdate(user, update);
+                    }
+                    break;
+                }
+                case "ROSTER": {
+                    Map<String, String> users = new HashMap<>();
+                    for(int i = 2; i + 1 < event.length; i += 2) {
+                        users.put(event[i], event[i + 1]);
+                    }
+                    
+                    reconcileUsers(node, users);
+                    break;
+                }
+                case "CHAT": {
+                    int update = Integer.parseInt(event[2]);
+                    int id = Integer.parseInt(event[3]);
+                    
+                    if(update == Requestor.CHANGE_CONNECTED && !Main.hasChat(id)) {
+                        ChatRoom chat = new ChatRoom(id, event[4]);
+                        Main.addChat(chat);
+                        Main.distributeChatUpdate(chat, Requestor.CHANGE_CONNECTED);
+                    }
+                    else if(update == Requestor.CHANGE_DISCONNECTED && Main.hasChat(id)) {
+                        Main.removeChats(Collections.singletonList(Main.getChat(id)));
+                    }
+                    break;
+                }
+                case "MEMBER": {
+                    int id = Integer.parseInt(event[2]);
+                    if(Main.hasChat(id)) {
+                        if(Boolean.parseBoolean(event[4])) {
+                            Main.joinChat(Main.getChat(id), event[3]);
+                        }
+                        else {
+                            Main.leaveChat(Main.getChat(id), event[3]);
+                        }
+                    }
+                    break;
+                }
+                case "CHATS": {
+                    reconcileChats(node, event);
+                    break;
+                }
+                case "SEND_CHAT": {
+                    // Only the owner gives out sequence numbers, and it sends the message on to everyone else
+                    int id = Integer.parseInt(event[3]);
+                    if(ownsChat(id) && Main.hasChat(id)) {
+                        ChatRoom chat = Main.getChat(id);
+                        long sequence = chat.sequence.next();
+                        Main.distributeNewMessage(new Message(sender(event[2]), chat, event[4], sequence, chat.sequence.getTimestamp()));
+                    }
+                    break;
+                }
+                case "CHAT_MESSAGE": {
+                    int id = Integer.parseInt(event[3]);
+                    if(Main.hasChat(id)) {
+                        Main.distributeNewMessage(new Message(sender(event[2]), Main.getChat(id), event[4],
+                                                              Long.parseLong(event[5]), Long.parseLong(event[6])));
+                    }
+                    break;
+                }
+                case "EVENT": {
+                    String to = event[4].isEmpty() ? null : event[4];
+                    Main.distributeEvent(event[2], Integer.parseInt(event[3]), to, Integer.parseInt(event[5]),
+                                         Long.parseLong(event[6]), Long.parseLong(event[7]));
+                    break;
+                }
+                case "DIRECT": {
+                    String to = event[3];
+                    User recipient = Main.hasUser(to) ? Main.getUser(to) : User.offline(to);
+                    
+                    SequenceCounter counter = Main.getDirectSequence(event[2], to);
+                    long sequence = counter.next();
+                    Main.distributeNewMessage(new Message(sender(event[2]), recipient, event[4], sequence, counter.getTimestamp()));
+                    break;
+                }
+            }
+        }
+        finally {
+            applyingRemote = false;
+        }
+    }
+    
+    private static User sender(String username) {
+        if(Main.hasUser(username)) {
+            return Main.getUser(username);
+        }
+        if(remoteUsers.containsKey(username)) {
+            return remoteUsers.get(username);
+        }
+        
+        return User.offline(username);
+    }
+    
+    private static void addRemoteUser(int node, String username, String nickname) {
+        // A user can only be on one node, the newest login wins
+        if(remoteUsers.containsKey(username)) {
+            remoteNodes.put(username, node);
+            return;
+        }
+        
+        User user = User.offline(username);
+        user.nickname = nickname;
+        
+        remoteUsers.put(username, user);
+        remoteNodes.put(username, node);
+        remoteList.add(user);
+        Main.distributeUserUpdate(user, Requestor.CHANGE_CONNECTED);
+    }
+    
+    private static void removeRemoteUser(String username) {
+        User user = remoteUsers.remove(username);
+        if(user != null) {
+            remoteNodes.remove(username);
+            remoteList.remove(user);
+            Main.distributeUserUpdate(user, Requestor.CHANGE_DISCONNECTED);
+        }
+    }
+    
+    private static void reconcileUsers(int node, Map<String, String> users) {
+        // Remove users the node no longer has
+        List<String> removed = new ArrayList<>();
+        for(Map.Entry<String, Integer> entry : remoteNodes.entrySet()) {
+            if(entry.getValue() == node && !users.containsKey(entry.getKey())) {
+                removed.add(entry.getKey());
+            }
+        }
+        for(String username : removed) {
+            removeRemoteUser(username);
+        }
+        
+        // Add users that were missed
+        for(Map.Entry<String, String> entry : users.entrySet()) {
+            if(!remoteUsers.containsKey(entry.getKey())) {
+                addRemoteUser(node, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+    
+    private static void reconcileChats(int node, String[] event) {
+        Set<Integer> owned = new HashSet<>();
+        List<ChatRoom> added = new ArrayList<>();
+        
+        int i = 2;
+        while(i + 2 < event.length) {
+            int id = Integer.parseInt(event[i]);
+            String name = event[i + 1];
+            int count = Integer.parseInt(event[i + 2]);
+            Set<String> members = new HashSet<>(Arrays.asList(event).subList(i + 3, i + 3 + count));
+            i += 3 + count;
+            owned.add(id);
+            
+            // A new chat is given out with its members, so they don't each need an update
+            if(!Main.hasChat(id)) {
+                ChatRoom chat = new ChatRoom(id, name);
+                chat.members.addAll(members);
+                Main.addChat(chat);
+                added.add(chat);
+                continue;
+            }
+            
+            // The owner's members replace ours, so joins and leaves that were missed are fixed up
+            ChatRoom chat = Main.getChat(id);
+            for(String member : new ArrayList<>(chat.members)) {
+                if(!members.contains(member)) {
+                    Main.leaveChat(chat, member);
+                }
+            }
+            for(String member : members) {
+                Main.joinChat(chat, member);
+            }
+        }
+        Main.distributeChatUpdates(added, Requestor.CHANGE_CONNECTED);
+        
+        // Remove chats the owner no longer has
+        List<ChatRoom> removed = new ArrayList<>();
+        for(ChatRoom chat : Main.chats) {
+            if(ownerOf(chat.id) == node && !owned.contains(chat.id)) {
+                removed.add(chat);
+            }
+        }
+        Main.removeChats(removed);
+    }
+    
+    private static int mix(int hash) {
+        // Spread out nearby numbers, such as chat IDs, across the ring
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
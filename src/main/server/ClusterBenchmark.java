@@ -0,0 +1,263 @@
+package main.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.zeromq.ZMQ;
+
+/**
+ * <P>
+ * Measures how many chat messages a cluster can take in and hand out. A number of clients
+ * log in to every node and join every chat, since only members can send to a chat. Each of them
+ * then sends messages to the chats as fast as the server answers, taking any new messages it was
+ * sent in between.
+ * </P>
+ * <P>
+ * Running it against one node and then against several shows how well the cluster scales.
+ * The nodes should be started with the rate limit for sending messages turned off, for
+ * example with -Dserver.rateLimit.10=0 and -Dserver.rateLimit=0, and should already have
+ * at least one chat.
+ * </P>
+ * <P>
+ * An address such as gateway://127.0.0.1:8745 connects to the TCP gateway of a node instead,
+ * so running the same benchmark against both addresses of one node compares the two.
+ * </P>
+ * <P>
+ * Usage: ClusterBenchmark &lt;client addresses, separated by commas&gt; [clients per node] [seconds]
+ * </P>
+ */
+public class ClusterBenchmark {
+
+    private static final String GATEWAY = "gateway://";
+
+    private static final AtomicLong sent = new AtomicLong();
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    
+    /**
+     * Runs the benchmark
+     * 
+     * @param args The client addresses of the nodes, the clients per node, and the number of seconds to run for
+     * @throws InterruptedException If interrupted while waiting for the clients
+     */
+    public static void main(String[] args) throws InterruptedException {
+        if(args.length < 1) {
+            System.out.println("Usage: ClusterBenchmark <client addresses, separated by commas> [clients per node] [seconds]");
+            return;
+        }
+        
+        String[] addresses = args[0].split(",");
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 10;
+        
+        ZMQ.Context context = ZMQ.context(1);
+        CountDownLatch ready = new CountDownLatch(addresses.length * clients);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(addresses.length * clients);
+        
+        for(int node = 0; node < addresses.length; node++) {
+            for(int i = 0; i < clients; i++) {
+                String address = addresses[node];
+                String username = "bench" + node + "_" + i;
+                
+                new Thread(() -> {
+                    try {
+                        runClient(context, address, username, ready, start, seconds);
+                    }
+                    finally {
+                        done.countDown();
+                    }
+                }).start();
+            }
+        }
+        
+        // Start measuring once everyone has logged in, so the cluster has seen all users
+        ready.await();
+        Thread.sleep(Cluster.HEARTBEAT);
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        
+        System.out.println(addresses.length + " nodes, " + clients + " clients per node, " + seconds + " seconds");
+        System.out.printf("Sent:     %d (%.0f/s)%n", sent.get(), sent.get() / elapsed);
+        System.out.printf("Received: %d (%.0f/s)%n", received.get(), received.get() / elapsed);
+        System.out.println("Failed:   " + failed.get());
+        
+        context.term();
+    }
+    
+    private static void runClient(ZMQ.Context context, String address, String username,
+                                  CountDownLatch ready, CountDownLatch start, long seconds) {
+        Connection socket;
+        try {
+            socket = address.startsWith(GATEWAY) ? new GatewayConnection(address.substring(GATEWAY.length()))
+                                                 : new ZmqConnection(context, address);
+        }
+        catch(IOException e) {
+            System.out.println("Could not connect to " + address + ": " + e.getMessage());
+            ready.countDown();
+            return;
+        }
+        String id = UUID.randomUUID().toString();
+        boolean counted = false;
+        
+        try {
+            if(!request(socket, id, Requestor.REQUEST_LOGIN, username, username)[0].equals("0")) {
+                System.out.println("Could not log in as " + username);
+                return;
+            }
+            
+            // Find the chats to send to, and join them since only members can send to a chat
+            int count = Integer.parseInt(request(socket, id, Requestor.REQUEST_CHATS_ONLINE)[1]);
+            if(count == 0) {
+                System.out.println("There are no chats on " + address);
+                return;
+            }
+            String[] chats = new String[count];
+            for(int i = 0; i < count; i++) {
+                chats[i] = request(socket, id, Requestor.REQUEST_CHAT, String.valueOf(i))[1];
+                if(!request(socket, id, Requestor.REQUEST_JOIN_CHAT, chats[i])[0].equals("0")) {
+                    System.out.println("Could not join chat " + chats[i] + " on " + address);
+                    return;
+                }
+            }
+            
+            ready.countDown();
+            counted = true;
+            start.await();
+            
+            long end = System.currentTimeMillis() + seconds * 1000;
+            long nextKeepAlive = 0;
+            int next = 0;
+            
+            while(System.currentTimeMillis() < end) {
+                if(System.currentTimeMillis() >= nextKeepAlive) {
+                    request(socket, id, Requestor.REQUEST_KEEP_ALIVE);
+                    nextKeepAlive = System.currentTimeMillis() + 5000;
+                }
+                
+                String chat = chats[next++ % chats.length];
+                if(request(socket, id, Requestor.REQUEST_SEND_MESSAGE, "false", chat, "Message from " + username)[0].equals("0")) {
+                    sent.incrementAndGet();
+                }
+                else {
+                    failed.incrementAndGet();
+                }
+                
+                // Take everything that arrived since the last message, an empty reply means there is nothing left
+                while(request(socket, id, Requestor.REQUEST_NEW_MESSAGE).length > 1) {
+                    received.incrementAndGet();
+                }
+            }
+            
+            request(socket, id, Requestor.REQUEST_LOGOUT);
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch(IOException e) {
+            System.out.println("Lost connection to " + address + ": " + e.getMessage());
+        }
+        finally {
+            // Don't hold up the other clients if this one couldn't get ready
+            if(!counted) {
+                ready.countDown();
+            }
+            socket.close();
+        }
+    }
+    
+    private static String[] request(Connection socket, String id, int code, String... arguments) throws IOException {
+        StringBuilder request = new StringBuilder(id).append('\n').append(code);
+        for(String argument : arguments) {
+            request.append('\n').append(argument);
+        }
+        
+        return socket.request(request.toString()).split("\n");
+    }
+    
+    // The ways a client can send requests to a node
+    private interface Connection {
+        
+        String request(String request) throws IOException;
+        
+        void close();
+    }
+    
+    private static class ZmqConnection implements Connection {
+        
+        private final ZMQ.Socket socket;
+        
+        ZmqConnection(ZMQ.Context context, String address) {
+            socket = context.socket(ZMQ.REQ);
+            socket.connect(address);
+        }
+        
+        @Override
+        public String request(String request) {
+            socket.send(request);
+            return socket.recvStr();
+        }
+        
+        @Override
+        public void close() {
+            socket.close();
+        }
+    }
+    
+    private static class GatewayConnection implements Connection {
+        
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+        
+        GatewayConnection(String address) throws IOException {
+            int colon = address.lastIndexOf(':');
+            socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+        
+        @Override
+        public String request(String request) throws IOException {
+            byte[] bytes = request.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+            
+            // Only the first frame is the reply, the benchmark never downloads anything
+            String reply = null;
+            int header;
+            do {
+                header = in.readInt();
+                byte[] frame = new byte[header & 0x7FFFFFFF];
+                in.readFully(frame);
+                if(reply == null) {
+                    reply = new String(frame, StandardCharsets.UTF_8);
+                }
+            } while(header < 0);
+            
+            return reply;
+        }
+        
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            }
+            catch(IOException e) {
+                // The benchmark is over either way
+            }
+        }
+    }
+}
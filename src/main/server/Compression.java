@@ -0,0 +1,121 @@
+package main.server;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <P>
+ * Compresses replies for clients that asked for it when logging in, and decompresses
+ * requests that clients chose to compress.
+ * </P>
+ * <P>
+ * A compressed payload starts with a zero byte, which a normal reply or request never does,
+ * followed by the zlib data. Only replies of at least {@code THRESHOLD} bytes are compressed,
+ * and only if that makes them smaller. Each thread keeps its own {@code Deflater} and
+ * {@code Inflater} so they are made once instead of for every reply. A compressed request that
+ * would be larger than {@code MAX_REQUEST} is refused before it is inflated any further, so a small
+ * request can't fill the memory.
+ * </P>
+ */
+public class Compression {
+
+    /**
+     * The name a client gives when logging in to have replies compressed
+     */
+    public static final String DEFLATE = "deflate";
+    
+    /**
+     * The first byte of a compressed payload
+     */
+    public static final byte MARKER = 0;
+    
+    /**
+     * The smallest reply in bytes that is compressed.
+     * This can be set with the server.compressionThreshold system property.
+     */
+    public static final int THRESHOLD = Integer.getInteger("server.compressionThreshold", 512);
+    
+    /**
+     * The largest a compressed request can be once it is decompressed. Pictures are sent
+     * in the upload frame, which is never compressed, so requests are only ever a few lines.
+     */
+    public static final int MAX_REQUEST = 64 * 1024;
+    
+    // Bandwidth to clients costs more than CPU on the server, so use the smallest output
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[8192]);
+    
+    /**
+     * Compresses a reply if it is large enough for that to be worth it
+     * 
+     * @param reply The reply to send
+     * @return The compressed reply, or the same array if it wasn't compressed
+     */
+    public static byte[] compress(byte[] reply) {
+        if(reply.length < THRESHOLD) {
+            return reply;
+        }
+        
+        Deflater deflater = deflaters.get();
+        byte[] buffer = buffers.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(reply.length / 2);
+        out.write(MARKER);
+        
+        deflater.reset();
+        deflater.setInput(reply);
+        deflater.finish();
+        while(!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        
+        // Some replies, like ones that are already mostly random, don't get any smaller
+        if(out.size() >= reply.length) {
+            return reply;
+        }
+        
+        Metrics.repliesCompressed.incrementAndGet();
+        Metrics.bytesBeforeCompression.addAndGet(reply.length);
+        Metrics.bytesAfterCompression.addAndGet(out.size());
+        return out.toByteArray();
+    }
+    
+    /**
+     * Decompresses a request if it was compressed
+     * 
+     * @param request The request as received
+     * @return The request, decompressed if needed
+     * @throws DataFormatException If the request starts like a compressed request but isn't valid,
+     * or would be larger than {@code MAX_REQUEST}
+     */
+    public static byte[] decompress(byte[] request) throws DataFormatException {
+        if(request.length == 0 || request[0] != MARKER) {
+            return request;
+        }
+        
+        Inflater inflater = inflaters.get();
+        byte[] buffer = buffers.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.min(request.length * 4, MAX_REQUEST));
+        
+        inflater.reset();
+        inflater.setInput(request, 1, request.length - 1);
+        while(!inflater.finished()) {
+            int length = inflater.inflate(buffer);
+            
+            // Nothing came out and more input is needed, so the data was cut short
+            if(length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("Compressed request is incomplete");
+            }
+            
+            if(out.size() + length > MAX_REQUEST) {
+                throw new DataFormatException("Compressed request is too large");
+            }
+            
+            out.write(buffer, 0, length);
+        }
+        
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,163 @@
+package main.server;
+
+import java.util.Arrays;
+
+/**
+ * <P>
+ * Holds the typing and read events waiting for one user. Unlike messages, these are only
+ * worth anything while they are new, so they are never kept on disk or put in the message queue.
+ * </P>
+ * <P>
+ * There is a fixed number of slots, and each sender, conversation and kind of event has one slot,
+ * so a newer event replaces the older one instead of waiting behind it. Different events that hash
+ * to the same slot move on to the next free one, and once every slot is taken the oldest event is
+ * replaced. Events older than {@code TTL} are dropped instead of given to the client. The slots are only made once the user is sent an event.
+ * This must only be used on the main thread.
+ * </P>
+ */
+public class EventSlots {
+
+    /**
+     * The number of events kept for each user, a power of 2.
+     * This can be set with the server.eventSlots system property.
+     */
+    public static final int SLOTS = Integer.highestOneBit(Math.max(1, Integer.getInteger("server.eventSlots", 64)));
+    
+    /**
+     * How many milliseconds an event is worth giving to a client.
+     * This can be set with the server.eventTtl system property.
+     */
+    public static final long TTL = Long.getLong("server.eventTtl", 5000);
+    
+    /**
+     * An event given to a client
+     */
+    public static class Event {
+        
+        /**
+         * The username of the user the event is from
+         */
+        public final String from;
+        
+        /**
+         * Whether the event is for a conversation between two users instead of a chat
+         */
+        public final boolean direct;
+        
+        /**
+         * The ID of the chat, or -1 for a conversation between two users
+         */
+        public final int chatId;
+        
+        /**
+         * The kind of event, a constant in {@code Requestor} that starts with EVENT_*
+         */
+        public final int kind;
+        
+        /**
+         * The value of the event, which depends on the kind
+         */
+        public final long value;
+        
+        /**
+         * The time the server received the event in milliseconds since the epoch
+         */
+        public final long timestamp;
+        
+        private Event(String from, boolean direct, int chatId, int kind, long value, long timestamp) {
+            this.from = from;
+            this.direct = direct;
+            this.chatId = chatId;
+            this.kind = kind;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+    
+    // The sender in UserIds, the chat or -1 for direct, and the kind
+    private int[] from;
+    private int[] to;
+    private int[] kinds;
+    private long[] values;
+    private long[] times;
+    private int count = 0;
+    
+    /**
+     * Keeps an event, replacing any older event in its slot
+     * 
+     * @param from The username of the user the event is from
+     * @param chatId The ID of the chat, or -1 for a conversation between two users
+     * @param kind The kind of event
+     * @param value The value of the event
+     * @param timestamp The time the server received the event
+     */
+    public void put(String from, int chatId, int kind, long value, long timestamp) {
+        if(times == null) {
+            this.from = new int[SLOTS];
+            to = new int[SLOTS];
+            kinds = new int[SLOTS];
+            values = new long[SLOTS];
+            times = new long[SLOTS];
+        }
+        
+        int sender = UserIds.of(from);
+        int slot = find(sender, chatId, kind);
+        
+        if(times[slot] == 0) {
+            count++;
+        }
+        this.from[slot] = sender;
+        to[slot] = chatId;
+        kinds[slot] = kind;
+        values[slot] = value;
+        times[slot] = timestamp;
+    }
+    
+    private int find(int sender, int chatId, int kind) {
+        int start = ((sender * 31 + chatId) * 31 + kind) & (SLOTS - 1);
+        int oldest = start;
+        
+        // Slots are only ever emptied all at once, so the first empty slot ends the search
+        for(int i = 0; i < SLOTS; i++) {
+            int slot = (start + i) & (SLOTS - 1);
+                if(times[slot] == 0 || (from[slot] == sender && to[slot] == chatId && kinds[slot] == kind)) {
+                return slot;
+            }
+            if(times[slot] < times[oldest]) {
+                oldest = slot;
+            }
+        }
+        
+        return oldest;
+    }
+    
+    /**
+     * Takes every event that isn't stale, oldest first, leaving the slots empty
+     * 
+     * @param now The current time in milliseconds since the epoch
+     * @return The events
+     */
+    public Event[] take(long now) {
+        if(count == 0) {
+            return new Event[0];
+        }
+        
+        Event[] events = new Event[count];
+        int taken = 0;
+        for(int slot = 0; slot < SLOTS; slot++) {
+            if(times[slot] == 0) {
+                continue;
+            }
+            
+            if(now - times[slot] <= TTL) {
+                events[taken++] = new Event(UserIds.username(from[slot]), to[slot] < 0, to[slot], kinds[slot], values[slot], times[slot]);
+            }
+            times[slot] = 0;
+        }
+        count = 0;
+        
+        events = Arrays.copyOf(events, taken);
+        Arrays.sort(events, (a, b) -> Long.compare(a.timestamp, b.timestamp));
+        return events;
+    }
+}
@@ -0,0 +1,245 @@
+package main.server;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * <P>
+ * Flight Recorder events for the work the server does on the main thread, so a standard
+ * recording shows which requests and updates were slow during an incident.
+ * </P>
+ * <P>
+ * Every event is disabled unless the recording turns it on, for example with the server.jfc
+ * settings file. Each {@code begin} method gives back the event to pass to its {@code end}
+ * method, or {@code null} if the event is off, so nothing is made while nothing is recorded.
+ * Only this class refers to {@code jdk.jfr}, and only once it is known to exist, so the server
+ * still runs on Java 8 builds without Flight Recorder.
+ * </P>
+ */
+public class Flight {
+
+    /**
+     * Whether this Java has Flight Recorder
+     */
+    public static final boolean AVAILABLE = isAvailable();
+    
+    @Name("main.server.Request")
+    @Label("Request")
+    @Category("Messaging Server")
+    @Description("A request handled by the main thread")
+    @Enabled(false)
+    @StackTrace(false)
+    static class RequestEvent extends Event {
+        
+        @Label("Request Code")
+        int request;
+        
+        @Label("Result Code")
+        int result;
+    }
+    
+    @Name("main.server.Distribute")
+    @Label("Distribute")
+    @Category("Messaging Server")
+    @Description("A message or update given to the users that should receive it")
+    @Enabled(false)
+    @StackTrace(false)
+    static class DistributeEvent extends Event {
+        
+        @Label("Kind")
+        String kind;
+        
+        @Label("Recipients")
+        int recipients;
+    }
+    
+    @Name("main.server.Kick")
+    @Label("Kick")
+    @Category("Messaging Server")
+    @Description("A client that stopped sending keep alives")
+    @Enabled(false)
+    @StackTrace(false)
+    static class KickEvent extends Event {
+        
+        @Label("Username")
+        String username;
+        
+        @Label("Suspended")
+        @Description("Whether the session was kept so the client can resume it")
+        boolean suspended;
+    }
+    
+    @Name("main.server.Picture")
+    @Label("Picture")
+    @Category("Messaging Server")
+    @Description("A profile picture encoded for a client or decoded from one")
+    @Enabled(false)
+    @StackTrace(false)
+    static class PictureEvent extends Event {
+        
+        @Label("Operation")
+        String operation;
+        
+        @Label("Size")
+        @Description("The size of the picture in bytes")
+        int size;
+    }
+    
+    // Made the first time an event is checked, so the event classes are never loaded without Flight Recorder
+    private static class Probes {
+        static final RequestEvent REQUEST = new RequestEvent();
+        static final DistributeEvent DISTRIBUTE = new DistributeEvent();
+        static final KickEvent KICK = new KickEvent();
+        static final PictureEvent PICTURE = new PictureEvent();
+    }
+    
+    /**
+     * Starts timing a request
+     * 
+     * @return The event to end, or {@code null} if requests aren't being recorded
+     */
+    public static Object beginRequest() {
+        if(!AVAILABLE || !Probes.REQUEST.isEnabled()) {
+            return null;
+        }
+        
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        return event;
+    }
+    
+    /**
+     * Records a request once it has been handled
+     * 
+     * @param event The event from {@code beginRequest}, which may be {@code null}
+     * @param requestLine The request code as sent by the client
+     * @param reply The reply to the request, which starts with the result code
+     */
+    public static void endRequest(Object event, String requestLine, String reply) {
+        if(event == null) {
+            return;
+        }
+        
+        RequestEvent request = (RequestEvent) event;
+        request.end();
+        if(request.shouldCommit()) {
+            request.request = parseCode(requestLine);
+            int end = reply.indexOf('\n');
+            request.result = parseCode(end < 0 ? reply : reply.substring(0, end));
+            request.commit();
+        }
+    }
+    
+    /**
+     * Starts timing a message or update being distributed
+     * 
+     * @return The event to end, or {@code null} if distributing isn't being recorded
+     */
+    public static Object beginDistribute() {
+        if(!AVAILABLE || !Probes.DISTRIBUTE.isEnabled()) {
+            return null;
+        }
+        
+        DistributeEvent event = new DistributeEvent();
+        event.begin();
+        return event;
+    }
+    
+    /**
+     * Records a message or update once it has been distributed
+     * 
+     * @param event The event from {@code beginDistribute}, which may be {@code null}
+     * @param kind What was distributed, such as "message"
+     * @param recipients The number of users or queues it was given to
+     */
+    public static void endDistribute(Object event, String kind, int recipients) {
+        if(event == null) {
+            return;
+        }
+        
+        DistributeEvent distribute = (DistributeEvent) event;
+        distribute.end();
+        if(distribute.shouldCommit()) {
+            distribute.kind = kind;
+            distribute.recipients = recipients;
+            distribute.commit();
+        }
+    }
+    
+    /**
+     * Records a client being kicked
+     * 
+     * @param username The username of the user that was logged in, or {@code null} if there wasn't one
+     * @param suspended Whether the session was kept so the client can resume it
+     */
+    public static void kick(String username, boolean suspended) {
+        if(!AVAILABLE || !Probes.KICK.isEnabled()) {
+            return;
+        }
+        
+        KickEvent event = new KickEvent();
+        event.username = username;
+        event.suspended = suspended;
+        event.commit();
+    }
+    
+    /**
+     * Starts timing a picture being encoded or decoded
+     * 
+     * @return The event to end, or {@code null} if pictures aren't being recorded
+     */
+    public static Object beginPicture() {
+        if(!AVAILABLE || !Probes.PICTURE.isEnabled()) {
+            return null;
+        }
+        
+        PictureEvent event = new PictureEvent();
+        event.begin();
+        return event;
+    }
+    
+    /**
+     * Records a picture once it has been encoded or decoded
+     * 
+     * @param event The event from {@code beginPicture}, which may be {@code null}
+     * @param operation "encode" or "decode"
+     * @param size The size of the picture in bytes
+     */
+    public static void endPicture(Object event, String operation, int size) {
+        if(event == null) {
+            return;
+        }
+        
+        PictureEvent picture = (PictureEvent) event;
+        picture.end();
+        if(picture.shouldCommit()) {
+            picture.operation = operation;
+            picture.size = size;
+            picture.commit();
+        }
+    }
+    
+    private static int parseCode(String code) {
+        try {
+            return Integer.parseInt(code);
+        }
+        catch(NumberFormatException e) {
+            return Integer.MIN_VALUE;
+        }
+    }
+    
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch(ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package main.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <P>
+ * Holds messages for a user while they are offline, or while they have more
+ * messages waiting than should be kept in memory.
+ * </P>
+ * <P>
+ * The newest messages are kept in memory. Once there are more than {@code MEMORY_LIMIT}
+ * of them, the oldest are written to disk in segments of {@code SEGMENT_SIZE} messages.
+ * Messages are given back a segment at a time, so a user with a large backlog never has
+ * the whole backlog loaded at once.
+ * </P>
+ * <P>
+ * All disk access happens on a single background thread, so fanning a message out to a slow
+ * reader never waits on the disk. The main thread only turns segments into bytes and back. If the
+ * next segment is still being read when a user asks for messages, the user gets nothing until it
+ * has loaded, and messages that arrived after it keep waiting behind it.
+ * </P>
+ */
+public class Mailbox {
+
+    /**
+     * The most messages kept in memory before the oldest are written to disk
+     */
+    public static final int MEMORY_LIMIT = 256;
+    
+    /**
+     * The number of messages written to each file on disk
+     */
+    public static final int SEGMENT_SIZE = 128;
+    
+    /**
+     * The most messages given to a user at once
+     */
+    public static final int DRAIN_SIZE = 128;
+    
+    /**
+     * The folder that mailbox files are kept in
+     */
+    public static final File DIRECTORY = Main.file("mailboxes");
+    
+    // Only one thread touches the files, so they never need to be locked
+    private static final ExecutorService io = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "mailbox-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * The username of the user the messages are for
+     */
+    public final String username;
+    
+    // Messages are given back in this order: head, then segments on disk, then tail
+    private final ArrayDeque<Message> head = new ArrayDeque<>();
+    private final ArrayDeque<Long> segments = new ArrayDeque<>();
+    private final ArrayDeque<Message> tail = new ArrayDeque<>();
+    private final File directory;
+    private long nextSegment = 0;
+    
+    // The read of the first segment on disk, once it has been started
+    private Future<byte[]> loading;
+    
+    // Owned by the mailbox thread, segments that couldn't be written are kept here instead
+    private final Map<Long, byte[]> unwritten = new HashMap<>();
+    
+    /**
+     * Creates an empty mailbox. Any old messages left on disk for the same user are thrown away.
+     * 
+     * @param username The username of the user the messages are for
+     */
+    public Mailbox(String username) {
+        this.username = username;
+        
+        // Usernames can have any characters, so encode them for the file name
+        StringBuilder name = new StringBuilder();
+        for(byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            name.append(String.format("%02x", b));
+        }
+        directory = new File(DIRECTORY, name.toString());
+        
+        io.execute(() -> {
+            File[] files = directory.listFiles();
+            if(files != null) {
+                for(File file : files) {
+                    file.delete();
+                }
+            }
+        });
+    }
+    
+    /**
+     * Checks if there are any messages waiting
+     * 
+     * @return Whether the mailbox is empty
+     */
+    public boolean isEmpty() {
+        return head.isEmpty() && segments.isEmpty() && tail.isEmpty();
+    }
+    
+    /**
+     * Adds a message after all others in the mailbox
+     * 
+     * @param message The message to keep
+     */
+    public void add(Message message) {
+        tail.addLast(message);
+        
+        if(tail.size() > MEMORY_LIMIT) {
+            spill();
+        }
+    }
+    
+    /**
+     * Puts messages that were given to a user but never taken back before all others
+     * in the mailbox. This is used when a user logs out or is kicked.
+     * 
+     * @param messages The messages to put back, oldest first
+     */
+    public void requeue(List<Message> messages) {
+        ListIterator<Message> iterator = messages.listIterator(messages.size());
+        while(iterator.hasPrevious()) {
+            head.addFirst(iterator.previous());
+        }
+    }
+    
+    /**
+     * Moves the oldest messages out of the mailbox. Fewer messages than are waiting may be moved
+     * if the next ones are still being read from disk.
+     * 
+     * @param messages The list to add the messages to
+     * @param max The most messages to move
+     */
+    public void drainTo(List<Message> messages, int max) {
+        while(max > 0) {
+            // Take the next segment from disk once the messages put back are used up
+            if(head.isEmpty() && !segments.isEmpty() && !takeSegment()) {
+                return;
+            }
+            
+            Message message = !head.isEmpty() ? head.pollFirst() : tail.pollFirst();
+            if(message == null) {
+                return;
+            }
+            
+            messages.add(message);
+            max--;
+        }
+        
+        // Start reading the next segment so it is ready by the time it is asked for
+        if(head.isEmpty() && !segments.isEmpty()) {
+            takeSegment();
+        }
+    }
+    
+    private void spill() {
+        // Turn the oldest in-memory messages into a new segment here, since only the main thread can read them
+        long segment = nextSegment++;
+        int count = Math.min(SEGMENT_SIZE, tail.size());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        try(DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(count);
+            
+            for(int i = 0; i < count; i++) {
+                Message message = tail.removeFirst();
+                
+                out.writeUTF(message.getFrom());
+                out.writeBoolean(message.isToChat());
+                if(message.isToChat()) {
+                    out.writeInt(message.getChatId());
+                }
+                else {
+                    out.writeUTF(message.getToUser());
+                }
+                out.writeUTF(message.getMessage());
+                out.writeLong(message.sequence);
+                out.writeLong(message.timestamp);
+                
+                // The segment replaces the copy in memory
+                message.release();
+            }
+        }
+        catch(IOException e) {
+            // Writing to memory can't fail
+            throw new IllegalStateException(e);
+        }
+        
+        segments.addLast(segment);
+        byte[] data = bytes.toByteArray();
+        io.execute(() -> write(segment, data));
+    }
+    
+    private boolean takeSegment() {
+        long segment = segments.peekFirst();
+        if(loading == null) {
+            loading = io.submit(() -> read(segment));
+        }
+        if(!loading.isDone()) {
+            return false;
+        }
+        
+        byte[] data;
+        try {
+            data = loading.get();
+        }
+        catch(InterruptedException | ExecutionException e) {
+            // Lose the segment rather than getting stuck on it
+            System.out.println("Could not read mailbox for " + username);
+            data = null;
+        }
+        
+        loading = null;
+        segments.removeFirst();
+        if(data != null) {
+            load(data);
+        }
+        
+        return true;
+    }
+    
+    private void load(byte[] data) {
+        try(DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int count = in.readInt();
+            
+            for(int i = 0; i < count; i++) {
+                String from = in.readUTF();
+                boolean toChat = in.readBoolean();
+                int chatId = toChat ? in.readInt() : -1;
+                String to = toChat ? null : in.readUTF();
+                String message = in.readUTF();
+                long sequence = in.readLong();
+                long timestamp = in.readLong();
+                
+                User sender = Main.hasUser(from) ? Main.getUser(from) : User.offline(from);
+                
+                if(toChat) {
+                    // Messages to chats that were removed are dropped
+                    if(Main.hasChat(chatId)) {
+                        head.addLast(new Message(sender, Main.getChat(chatId), message, sequence, timestamp));
+                    }
+                }
+                else {
+                    User recipient = Main.hasUser(to) ? Main.getUser(to) : User.offline(to);
+                    head.addLast(new Message(sender, recipient, message, sequence, timestamp));
+                }
+            }
+        }
+        catch(IOException e) {
+            System.out.println("Could not read mailbox for " + username);
+        }
+    }
+    
+    // Runs on the mailbox thread
+    private void write(long segment, byte[] data) {
+        directory.mkdirs();
+        
+        try(FileOutputStream out = new FileOutputStream(new File(directory, segment + ".dat"))) {
+            out.write(data);
+        }
+        catch(IOException e) {
+            // Keep the messages in memory rather than losing them
+            System.out.println("Could not write mailbox for " + username);
+            unwritten.put(segment, data);
+        }
+    }
+    
+    // Runs on the mailbox thread
+    private byte[] read(long segment) throws IOException {
+        byte[] data = unwritten.remove(segment);
+        if(data != null) {
+            return data;
+        }
+        
+        File file = new File(directory, segment + ".dat");
+        data = Files.readAllBytes(file.toPath());
+        file.delete();
+        return data;
+    }
+}
@@ -1,10 +1,23 @@
 package main.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
 
 import org.zeromq.ZMQ;
 
@@ -32,15 +45,103 @@ import org.zeromq.ZMQ;
 public class Main {
 
     /**
-     * A list of all users connected to the server
+     * The address of the admin socket, which takes the same commands as the console.
+     * This can be set with the server.adminAddress system property.
+     */
+    public static final String ADMIN_ADDRESS = System.getProperty("server.adminAddress", "tcp://127.0.0.1:8744");
+    
+    /**
+     * The address clients connect to. This can be set with the server.address system property,
+     * which lets several cluster nodes run on the same machine.
+     */
+    public static final String ADDRESS = System.getProperty("server.address", "tcp://*:8743");
+    
+    /**
+     * The folder the snapshot, history, mailboxes, pictures and logs are kept in.
+     * This can be set with the server.directory system property.
+     */
+    public static final File DIRECTORY = new File(System.getProperty("server.directory", "."));
+    
+    /**
+     * A list of all users connected to the server.
+     * This is only used on the main thread, other threads should use {@code userSnapshot}
      */
     public static List<User> users = new ArrayList<>();
     
     /**
-     * A list of all chats connected to the server
+     * A list of all chats connected to the server.
+     * This is only used on the main thread, other threads should use {@code chatSnapshot}
      */
     public static List<ChatRoom> chats = new ArrayList<>();
     
+    /**
+     * A copy of {@code users} that can't be changed, which is safe to read on any thread
+     */
+    public static volatile List<User> userSnapshot = Collections.emptyList();
+    
+    /**
+     * A copy of {@code chats} that can't be changed, which is safe to read on any thread
+     */
+    public static volatile List<ChatRoom> chatSnapshot = Collections.emptyList();
+    
+    // Lookups for users and chats, kept in step with the lists
+    private static final Map<String, User> usersByName = new HashMap<>();
+    private static final Map<Integer, ChatRoom> chatsById = new HashMap<>();
+    private static final BitSet usedChatIds = new BitSet();
+    
+    // The most requests taken from the socket before handling any, so a flood can't stop the loop
+    private static final int MAX_RECEIVES = 1024;
+    
+    private static boolean usersChanged = false;
+    private static boolean chatsChanged = false;
+    
+    /**
+     * User updates for all online users, which each user reads at their own pace
+     */
+    public static final PresenceStream presence = new PresenceStream();
+    
+    /**
+     * Commands from other threads waiting to be run on the main thread
+     */
+    private static final Queue<Runnable> commands = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Mailboxes by username, only for users that have messages waiting in one.
+     * A mailbox is made when the first message has to be kept, and removed once it is empty.
+     */
+    public static Map<String, Mailbox> mailboxes = new HashMap<>();
+    
+    /**
+     * Profiles for every user that has logged in, by username.
+     * These are saved in snapshots so pictures don't have to be uploaded again after a restart.
+     */
+    public static Map<String, Profile> profiles = new HashMap<>();
+    
+    /**
+     * The most direct message conversations whose sequence counters are kept. The conversations used
+     * least recently are forgotten first, and a forgotten conversation starts again from sequence number 0.
+     * This can be set with the server.directSequences system property.
+     */
+    public static final int MAX_DIRECT_SEQUENCES = Integer.getInteger("server.directSequences", 65536);
+    
+    /**
+     * Milliseconds without a message before a direct message conversation's sequence counter is forgotten.
+     * This can be set with the server.directIdle system property.
+     */
+    public static final long DIRECT_IDLE = Long.getLong("server.directIdle", 30L * 24 * 60 * 60 * 1000);
+    
+    /**
+     * Sequence counters for direct messages, by conversation, least recently used first
+     */
+    private static Map<String, SequenceCounter> directSequences = new LinkedHashMap<String, SequenceCounter>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SequenceCounter> eldest) {
+            return size() > MAX_DIRECT_SEQUENCES;
+        }
+    };
+    
     // These are volatile because they are accessed on different threads
     /**
      * Tells the server that it should be shutting down
@@ -60,135 +161,505 @@ public class Main {
      * @throws InterruptedException Will be thrown if thread is interrupted while ZeroMQ is running
      */
     public static void main(String[] args) throws InterruptedException {
+        run(true);
+        
+        // In case of occasional lingering thread, exit program
+        System.exit(0);
+    }
+    
+    /**
+     * Waits for requests and handles them until the server is stopped, then saves its state
+     * 
+     * @param console Whether to read commands from the console, which shards leave to {@code ShardLauncher}
+     * @throws InterruptedException Will be thrown if thread is interrupted while ZeroMQ is running
+     */
+    public static void run(boolean console) throws InterruptedException {
+        // Load the state saved when the server last stopped, before any clients can connect
+        try {
+            long start = System.currentTimeMillis();
+            if(Snapshot.restore(Snapshot.FILE)) {
+                publishSnapshots();
+                System.out.println("Restored " + chats.size() + " chats and " + profiles.size() + " profiles in "
+                                 + (System.currentTimeMillis() - start) + "ms");
+            }
+        }
+        catch(IOException e) {
+            System.out.println("Could not restore snapshot: " + e.getMessage());
+        }
+        
+        // Save state every so often in case the server doesn't stop cleanly
+        ScheduledExecutorService snapshots = Executors.newSingleThreadScheduledExecutor();
+        if(Snapshot.INTERVAL > 0) {
+            snapshots.scheduleWithFixedDelay(() -> post(() -> {
+                // Take the snapshot on the main thread, but write it on the snapshot thread
+                Snapshot snapshot = Snapshot.take();
+                snapshots.execute(() -> saveSnapshot(snapshot));
+            }), Snapshot.INTERVAL, Snapshot.INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        
         ZMQ.Context context = ZMQ.context(1);
 
-        //  Socket to talk to clients
-        ZMQ.Socket responder = context.socket(ZMQ.REP);
-        responder.bind("tcp://*:8743");
-        
-        new Thread(() -> {
-            // Console command viewer
-            Scanner sc = new Scanner(System.in);
-            String line = null;
-            while((line = sc.nextLine()) != null) {
-                // Wait 5 seconds to close so clients will get RESULT_NOT_LOGGED_IN and return to login screen
-                if(line.trim().equalsIgnoreCase("/stop")) {
-                    sc.close();
-                    stop = true;
-                    stopTime = System.currentTimeMillis();
-                    System.out.println("Shutting down in 5 seconds");
-                    break;
-                }
-                else if(line.toLowerCase().trim().startsWith("/addchat")) {
-                    String[] command = line.split(" ");
-                    
-                    if(command.length > 1) {
-                        // Start from 0 and continue to increment until free id is found
-                        int id = -1;
-                        while(Main.hasChat(++id));
-                        
-                        ChatRoom chat = new ChatRoom(id, command[1]);
-                        
-                        System.out.println(chat.id + " " + chat.name);
-                        
-                        // Add chat to server, and announce change to server
-                        distributeChatUpdate(chat, Requestor.CHANGE_CONNECTED);
-                        chats.add(chat);
+        // Socket to talk to clients, which can reply in any order so requests can wait in their lanes
+        ZMQ.Socket responder = context.socket(ZMQ.ROUTER);
+        responder.bind(ADDRESS);
+        
+        // Socket for admin tools to send console commands to, this should only be reachable from this machine
+        ZMQ.Socket admin = context.socket(ZMQ.REP);
+        admin.bind(ADMIN_ADDRESS);
+        
+        // Connect to the other nodes if this server is part of a cluster
+        Cluster.start(context);
+        
+        AccessLog.start();
+        RequestCapture.start();
+        
+        // Let clients without ZeroMQ connect over plain TCP
+        try {
+            TcpGateway.start();
+        }
+        catch(IOException e) {
+            System.out.println("Could not start TCP gateway: " + e.getMessage());
+        }
+        
+        if(console) {
+            new Thread(() -> {
+                // Console command viewer
+                Scanner sc = new Scanner(System.in);
+                String line = null;
+                while((line = sc.nextLine()) != null) {
+                    // Wait 5 seconds to close so clients will get RESULT_NOT_LOGGED_IN and return to login screen
+                    if(line.trim().equalsIgnoreCase("/stop")) {
+                        sc.close();
+                        stop = true;
+                        stopTime = System.currentTimeMillis();
+                        System.out.println("Shutting down in 5 seconds");
+                        break;
                     }
-                }
-                else if(line.toLowerCase().trim().startsWith("/removechat")) {
-                    String[] command = line.split(" ");
-                    if(command.length > 1) {
-                        List<ChatRoom> chats = new ArrayList<>();
-                        try {
-                            // Remove single chat by ID
-                            int id = Integer.parseInt(command[1]);
-                            
-                            try {
-                                chats.add(getChat(id));
-                            }
-                            catch(NoSuchElementException e) {
-                                System.out.println("Chat not id found");
-                            }
-                        }
-                        catch(NumberFormatException e) {
-                            String name = line.replaceFirst("/removechat ", "");
-                            
-                            // If no ID was given, remove all by name
-                            for(ChatRoom chat : Main.chats) {
-                                if(chat.name.equals(name)) {
-                                    chats.add(chat);
-                                }
-                            }
-                        }
-                        
-                        // Remove chat and distribute update
-                        for(ChatRoom chat : chats) {
-                            distributeChatUpdate(chat, Requestor.CHANGE_DISCONNECTED);
-                            Main.chats.remove(chat);
-                        }
+                    // Stats only read snapshots, so they can be printed from this thread
+                    else if(line.trim().equalsIgnoreCase("/stats")) {
+                        System.out.println(Metrics.summary());
+                        continue;
                     }
-                }
-                else if(line.toLowerCase().trim().startsWith("/removeuser") ) {
-                    String[] command = line.split(" ");
-                    if(command.length > 1) {
-                        String name = line.replaceFirst("/removeuser ", "");
-                        
-                        if(!hasUser(name)) {
-                            System.out.println("User not found");
-                        
-                        }
-                        else {
-                            // Get user from username
-                            User user = getUser(name);
-                            
-                            // Remove user and distribute update
-                            Main.distributeUserUpdate(user, Requestor.CHANGE_DISCONNECTED);
-                            Main.users.remove(user);
-                            user.requestor.removeUser();
+                    
+                    // Let the main thread run the command so that only it changes server state
+                    String command = line;
+                    post(() -> {
+                        String output = handleCommand(command);
+                        if(!output.isEmpty()) {
+                            System.out.println(output);
                         }
-                    }
+                    });
                 }
-            }
-        }).start();
+            }).start();
+        }
         
         // Stop on thread interrupt or when the server has been stopping for more than 5 seconds
         while (!Thread.currentThread().isInterrupted() && (!stop || System.currentTimeMillis() - stopTime < 5000)) {
 
-            // Don't block to allow server to stop if necessary
-            String request = responder.recvStr(ZMQ.NOBLOCK);
-                
-            // Loop until a request was received
-            if(request != null) {
-                // Tell the requester that the server is stopping so that it can log out
-                if(stop) {
-                    responder.send(String.valueOf(Requestor.RESULT_COULD_NOT_CONNECT));
-                }
-                else {
-                    // Separate each part of the request by newlines
-                    String[] paramaters = request.split("\\n");
-                    
-                    // Get information for requester, or create it if it doesn't exist
-                    Requestor requestor = Requestor.findOrCreateRequestor(paramaters[0]);
-                    
-                    // With the information about the requester, parse the request making a reply to send back to the requester
-                    String reply = requestor.handleRequest(paramaters[1], Arrays.copyOfRange(paramaters, 2, paramaters.length));
-                    
-                    // Send the data
-                    responder.send(reply.getBytes(), 0);
-                }
+            // Run anything other threads asked to be done
+            runCommands();
+            
+            // Apply changes made on other nodes
+            Cluster.poll();
+            
+            // Admin commands are run right away since they are already on the main thread
+            String command = admin.recvStr(ZMQ.NOBLOCK);
+            if(command != null) {
+                admin.send(handleCommand(command));
             }
+            
+            // Take every request that arrived, then handle control requests and one round of the others
+            int taken = 0;
+            while(taken < MAX_RECEIVES && receive(responder)) {
+                taken++;
+            }
+            RequestLanes.handle();
+            
+            publishSnapshots();
         }
         
         // Stop timeout timers so program can exit
         Requestor.stopAllTimers();
         
+        // Finish writing chat history, the access log and any capture to disk
+        ChatHistory.shutdown();
+        AccessLog.stop();
+        RequestCapture.stop();
+        
+        // Save state so the next start can pick up where this one left off
+        snapshots.shutdown();
+        snapshots.awaitTermination(5, TimeUnit.SECONDS);
+        saveSnapshot(Snapshot.take());
+        
         // Close ZeroQM server
+        TcpGateway.stop();
+        Cluster.stop();
+        admin.close();
         responder.close();
         context.term();
+    }
+    
+    private static boolean receive(ZMQ.Socket responder) {
+        // Don't block to allow server to stop if necessary
+        byte[] frame = responder.recv(ZMQ.NOBLOCK);
+        if(frame == null) {
+            return false;
+        }
+        long received = System.nanoTime();
         
-        // In case of occasional lingering thread, exit program
-        System.exit(0);
+        // The envelope is every frame up to the empty one, and tells the socket who the reply is for
+        List<byte[]> envelope = new ArrayList<>(2);
+        while(frame.length > 0 && responder.hasReceiveMore()) {
+            envelope.add(frame);
+            frame = responder.recv();
+        }
+        envelope.add(frame);
+        if(frame.length > 0 || !responder.hasReceiveMore()) {
+            while(responder.hasReceiveMore()) {
+                responder.recv();
+            }
+            return true;
+        }
+        byte[] request = responder.recv();
+        
+        // Uploads send their data in a second frame
+        byte[] payload = responder.hasReceiveMore() ? responder.recv() : null;
+        while(responder.hasReceiveMore()) {
+            responder.recv();
+        }
+        
+        // Send the reply, with a second frame for downloads
+        RequestLanes.add(request, payload, received, reply -> {
+            for(byte[] part : envelope) {
+                responder.sendMore(part);
+            }
+            if(reply.length > 1) {
+                responder.sendMore(reply[0]);
+            }
+            responder.send(reply[reply.length - 1], 0);
+        });
+        
+        return true;
+    }
+    
+    /**
+     * Finds a file the server keeps, in {@code DIRECTORY} unless the path is absolute
+     * 
+     * @param path The path of the file
+     * @return The file
+     */
+    public static File file(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(DIRECTORY, path);
+    }
+    
+    /**
+     * Handles one request from a client, however it was sent to the server.
+     * This must only be called on the main thread.
+     * 
+     * @param request The request
+     * @param payload The data for an upload, or {@code null}
+     * @param received The time the request was received from {@code System.nanoTime}
+     * @param compressed Whether the request may still be compressed, which is false once {@code RequestLanes} has decompressed it
+     * @return The frames to send back, which are the reply and then the data for a download if there is any
+     */
+    public static byte[][] handleRequest(byte[] request, byte[] payload, long received, boolean compressed) {
+        if(compressed) {
+            try {
+                request = Compression.decompress(request);
+            }
+            catch(DataFormatException e) {
+                return new byte[][] {String.valueOf(Requestor.RESULT_BAD_REQUEST).getBytes(ZMQ.CHARSET)};
+            }
+        }
+        
+        // Tell the requester that the server is stopping so that it can log out
+        if(stop) {
+            return new byte[][] {String.valueOf(Requestor.RESULT_COULD_NOT_CONNECT).getBytes(ZMQ.CHARSET)};
+        }
+        
+        // Separate each part of the request by newlines
+        String[] paramaters = new String(request, ZMQ.CHARSET).split("\\n");
+        if(paramaters.length < 2) {
+            return new byte[][] {String.valueOf(Requestor.RESULT_BAD_REQUEST).getBytes(ZMQ.CHARSET)};
+        }
+        
+        // Get information for requester, or create it if it doesn't exist
+        Requestor requestor = Requestor.findOrCreateRequestor(paramaters[0]);
+        String username = requestor.getUsername();
+        
+        // With the information about the requester, parse the request making a reply to send back to the requester
+        String reply = requestor.handleRequest(paramaters[1], Arrays.copyOfRange(paramaters, 2, paramaters.length), payload);
+        byte[] encoded = requestor.encodeReply(reply);
+        byte[] replyPayload = requestor.takeReplyPayload();
+        
+        // Log logouts under the user that logged out
+        if(requestor.getUsername() != null) {
+            username = requestor.getUsername();
+        }
+        AccessLog.add(requestor.worker, username, paramaters[1], reply,
+                      encoded.length + (replyPayload != null ? replyPayload.length : 0), System.nanoTime() - received);
+        
+        return replyPayload != null ? new byte[][] {encoded, replyPayload} : new byte[][] {encoded};
+    }
+    
+    /**
+     * Runs a console command. This must only be called on the main thread.
+     * Commands that end in an s work on many chats or users at once, and only
+     * send one round of updates for all of them.
+     * 
+     * @param line The command typed into the console or sent to the admin socket
+     * @return The output of the command, which may be empty
+     */
+    public static String handleCommand(String line) {
+        RequestCapture.addCommand(line);
+        
+        String[] command = line.trim().split("\\s+");
+        String name = command[0].toLowerCase();
+        List<String> arguments = Arrays.asList(command).subList(1, command.length);
+        
+        if(name.equals("/stop")) {
+            // Wait 5 seconds to close so clients will get RESULT_NOT_LOGGED_IN and return to login screen
+            stop = true;
+            stopTime = System.currentTimeMillis();
+            return "Shutting down in 5 seconds";
+        }
+        else if(name.equals("/stats")) {
+            return Metrics.summary();
+        }
+        else if(name.equals("/addchat") || name.equals("/addchats")) {
+            // Only the first name is used by the single version
+            if(name.equals("/addchat") && arguments.size() > 1) {
+                arguments = arguments.subList(0, 1);
+            }
+            
+            StringBuilder output = new StringBuilder();
+            for(ChatRoom chat : addChats(arguments)) {
+                output.append(chat.id + " " + chat.name + "\n");
+            }
+            
+            return output.toString().trim();
+        }
+        else if(name.equals("/removechat") || name.equals("/removechats")) {
+            if(arguments.isEmpty()) {
+                return "";
+            }
+            
+            // The single version can remove all chats by a name with spaces in it
+            if(name.equals("/removechat")) {
+                arguments = Arrays.asList(line.trim().substring(command[0].length()).trim());
+            }
+            
+            List<ChatRoom> chats = new ArrayList<>();
+            StringBuilder output = new StringBuilder();
+            for(String argument : arguments) {
+                try {
+                    // Remove single chat by ID
+                    int id = Integer.parseInt(argument);
+                    
+                    try {
+                        chats.add(getChat(id));
+                    }
+                    catch(NoSuchElementException e) {
+                        output.append("Chat id " + id + " not found\n");
+                    }
+                }
+                catch(NumberFormatException e) {
+                    // If no ID was given, remove all by name
+                    for(ChatRoom chat : Main.chats) {
+                        if(chat.name.equals(argument)) {
+                            chats.add(chat);
+                        }
+                    }
+                }
+            }
+            
+            removeChats(chats);
+            return output.toString().trim();
+        }
+        else if(name.equals("/removeuser") || name.equals("/removeusers")) {
+            if(arguments.isEmpty()) {
+                return "";
+            }
+            
+            // The single version can remove a user with spaces in their name
+            if(name.equals("/removeuser")) {
+                arguments = Arrays.asList(line.trim().substring(command[0].length()).trim());
+            }
+            
+            List<User> users = new ArrayList<>();
+            StringBuilder output = new StringBuilder();
+            for(String username : arguments) {
+                if(!hasUser(username)) {
+                    output.append("User " + username + " not found\n");
+                }
+                else {
+                    users.add(getUser(username));
+                }
+            }
+            
+            removeUsers(users);
+            return output.toString().trim();
+        }
+        
+        return "Unknown command";
+    }
+    
+    /**
+     * Creates chats and sends one round of updates for all of them
+     * 
+     * @param names The names of the chats
+     * @return The chats that were created
+     */
+    public static List<ChatRoom> addChats(List<String> names) {
+        List<ChatRoom> added = new ArrayList<>();
+        for(String name : names) {
+            ChatRoom chat = new ChatRoom(nextChatId(), name);
+            addChat(chat);
+            added.add(chat);
+        }
+        
+        // Add chats to server, and announce change to server
+        distributeChatUpdates(added, Requestor.CHANGE_CONNECTED);
+        return added;
+    }
+    
+    /**
+     * Removes chats and sends one round of updates for all of them
+     * 
+     * @param removed The chats to remove
+     */
+    public static void removeChats(List<ChatRoom> removed) {
+        // Remove chat and distribute update
+        distributeChatUpdates(removed, Requestor.CHANGE_DISCONNECTED);
+        for(ChatRoom chat : removed) {
+            removeChat(chat);
+            chat.history.delete();
+            chat.search.clear();
+        }
+    }
+    
+    /**
+     * Logs out users and sends one round of updates for all of them
+     * 
+     * @param removed The users to log out
+     */
+    public static void removeUsers(List<User> removed) {
+        // Remove user and distribute update
+        distributeUserUpdates(removed, Requestor.CHANGE_DISCONNECTED);
+        for(User user : removed) {
+            removeUser(user);
+            user.storeMessages();
+            user.requestor.removeUser();
+            Requestor.endSession(user);
+        }
+    }
+    
+    private static void saveSnapshot(Snapshot snapshot) {
+        try {
+            snapshot.write(Snapshot.FILE);
+        }
+        catch(IOException e) {
+            System.out.println("Could not save snapshot: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Asks the main thread to run a command. This is how other threads change server state,
+     * so that the main thread never has to lock anything while handling requests.
+     * 
+     * @param command The command to run
+     */
+    public static void post(Runnable command) {
+        commands.add(command);
+    }
+    
+    /**
+     * Runs everything other threads posted. This must only be called on the main thread.
+     */
+    static void runCommands() {
+        Runnable command;
+        while((command = commands.poll()) != null) {
+            command.run();
+        }
+    }
+    
+    /**
+     * Makes the users and chats that changed visible to other threads. This must only be called on the main thread.
+     */
+    static void publishSnapshots() {
+        // Copy the lists at most once per request, no matter how many times they changed
+        if(usersChanged) {
+            userSnapshot = Collections.unmodifiableList(new ArrayList<>(users));
+            usersChanged = false;
+        }
+        if(chatsChanged) {
+            chatSnapshot = Collections.unmodifiableList(new ArrayList<>(chats));
+            chatsChanged = false;
+        }
+    }
+    
+    /**
+     * Adds a user that logged in. This must only be called on the main thread.
+     * 
+     * @param user The user to add
+     */
+    public static void addUser(User user) {
+        // The user gets the whole user list when logging in, so they only need updates from now on
+        user.presenceCursor = presence.getEpoch();
+        
+        users.add(user);
+        usersByName.put(user.username, user);
+        usersChanged = true;
+    }
+    
+    /**
+     * Removes a user that logged out or was kicked. This must only be called on the main thread.
+     * 
+     * @param user The user to remove
+     */
+    public static void removeUser(User user) {
+        users.remove(user);
+        usersByName.remove(user.username);
+        usersChanged = true;
+    }
+    
+    /**
+     * Adds a new chat. This must only be called on the main thread.
+     * 
+     * @param chat The chat to add
+     */
+    public static void addChat(ChatRoom chat) {
+        chats.add(chat);
+        chatsById.put(chat.id, chat);
+        usedChatIds.set(chat.id);
+        chatsChanged = true;
+    }
+    
+    /**
+     * Removes a chat. This must only be called on the main thread.
+     * 
+     * @param chat The chat to remove
+     */
+    public static void removeChat(ChatRoom chat) {
+        chats.remove(chat);
+        chatsById.remove(chat.id);
+        usedChatIds.clear(chat.id);
+        chatsChanged = true;
+    }
+    
+    /**
+     * Finds the lowest chat ID that isn't being used
+     * 
+     * @return The ID for a new chat
+     */
+    public static int nextChatId() {
+        // In a cluster, only use IDs this node owns so other nodes never pick the same one
+        if(Cluster.ENABLED) {
+            return Cluster.nextOwnedChatId(usedChatIds);
+        }
+        
+        return usedChatIds.nextClearBit(0);
     }
     
     /**
@@ -198,13 +669,7 @@ public class Main {
      * @return Whether the user is online or not
      */
     public static boolean hasUser(String username) {
-        for(User user : users) {
-            if(user.username.equals(username)) {
-                return true;
-            }
-        }
-        
-        return false;
+        return usersByName.containsKey(username);
     }
     
     /**
@@ -214,13 +679,7 @@ public class Main {
      * @return Whether the chat exists or not
      */
     public static boolean hasChat(int chatId) {
-        for(ChatRoom chat : chats) {
-            if(chat.id == chatId) {
-                return true;
-            }
-        }
-        
-        return false;
+        return chatsById.containsKey(chatId);
     }
     
     /**
@@ -231,13 +690,12 @@ public class Main {
      * @throws NoSuchElementException If the chat can't be found
      */
     public static ChatRoom getChat(int id) throws NoSuchElementException {
-        for(ChatRoom chat : chats) {
-            if(chat.id == id) {
-                return chat;
-            }
+        ChatRoom chat = chatsById.get(id);
+        if(chat == null) {
+            throw new NoSuchElementException();
         }
         
-        throw new NoSuchElementException();
+        return chat;
     }
     
     /**
@@ -248,32 +706,173 @@ public class Main {
      * @throws NoSuchElementException If the user can't be found
      */
     public static User getUser(String username) throws NoSuchElementException {
-        for(User user : users) {
-            if(user.username.equals(username)) {
-                return user;
-            }
+        User user = usersByName.get(username);
+        if(user == null) {
+            throw new NoSuchElementException();
         }
         
-        throw new NoSuchElementException();
+        return user;
+    }
+    
+    /**
+     * Checks if a user has messages waiting in a mailbox
+     * 
+     * @param username The username of the user
+     * @return Whether the user has a mailbox
+     */
+    public static boolean hasMailbox(String username) {
+        return mailboxes.containsKey(username);
+    }
+    
+    /**
+     * Gets the mailbox for a user, creating it if they have no messages waiting
+     * 
+     * @param username The username of the user
+     * @return The user's mailbox
+     */
+    public static Mailbox getMailbox(String username) {
+        return mailboxes.computeIfAbsent(username, Mailbox::new);
+    }
+    
+    /**
+     * Removes a user's mailbox once every message in it has been taken
+     * 
+     * @param username The username of the user
+     */
+    public static void removeMailboxIfEmpty(String username) {
+        Mailbox mailbox = mailboxes.get(username);
+        if(mailbox != null && mailbox.isEmpty()) {
+            mailboxes.remove(username);
+        }
+    }
+    
+    /**
+     * Gets the profile for a user, creating it if this is the first time they logged in
+     * 
+     * @param username The username of the user
+     * @return The user's profile
+     */
+    public static Profile getProfile(String username) {
+        return profiles.computeIfAbsent(username, name -> new Profile(name, name, null));
+    }
+    
+    /**
+     * Gets the sequence counters for all direct message conversations
+     * 
+     * @return The counters by conversation
+     */
+    static Map<String, SequenceCounter> getDirectSequences() {
+        return directSequences;
     }
     
     /**
-     * Distributes a new message to all users that should receive it
+     * Forgets the sequence counters of direct message conversations that have been idle for
+     * longer than {@code DIRECT_IDLE}, so snapshots only keep the ones used recently
+     */
+    static void forgetIdleDirectSequences() {
+        long idleSince = System.currentTimeMillis() - DIRECT_IDLE;
+        directSequences.values().removeIf(counter -> counter.getTimestamp() < idleSince);
+    }
+    
+    /**
+     * Gets the sequence counter for direct messages between two users.
+     * Both users share the same counter no matter who sends the message.
+     * 
+     * @param first The username of one user
+     * @param second The username of the other user
+     * @return The sequence counter for the conversation
+     */
+    public static SequenceCounter getDirectSequence(String first, String second) {
+        // Use the same key in both directions
+        String key = first.compareTo(second) < 0 ? first + "\n" + second : second + "\n" + first;
+        return directSequences.computeIfAbsent(key, k -> new SequenceCounter());
+    }
+    
+    /**
+     * Distributes a new message to all users that should receive it.
+     * This takes over the reference the message was made with.
      * 
      * @param message The message to distribute
      */
     public static void distributeNewMessage(Message message) {
-        // Distribute chat messages to correct users
-        for(User user : users) {
-            // Send new message to everyone except sender if in chat
-            if(message.toChat.isPresent() && !message.from.username.equals(user.username)) {
-                user.addQueuedMessage(message);
+        Object event = Flight.beginDistribute();
+        int recipients = 0;
+        
+        // Keep chat messages so they can be requested later
+        if(message.isToChat()) {
+            ChatRoom chat = getChat(message.getChatId());
+            chat.history.add(message);
+            chat.search.add(message);
+            
+            // The owner of a chat sends its messages to the other nodes
+            if(Cluster.ENABLED && Cluster.ownsChat(chat.id)) {
+                Cluster.publishChatMessage(message);
             }
-            // Send message to user addressed if not in chat
-            else if(message.toUser.isPresent() && message.toUser.get().username.equals(user.username)) {
-                user.addQueuedMessage(message);
+            
+            // Send new message to every online member except the sender, so the cost depends on the size of the chat
+            String from = message.getFrom();
+            for(String member : chat.members) {
+                if(!from.equals(member) && hasUser(member)) {
+                    getUser(member).addQueuedMessage(message);
+                    recipients++;
+                }
+            }
+        }
+        
+        // Send message to user addressed, or keep it until they log in
+        else {
+            String username = message.getToUser();
+            
+            if(hasUser(username)) {
+                getUser(username).addQueuedMessage(message);
+                recipients++;
+            }
+            else if(profiles.containsKey(username)) {
+                message.retain();
+                getMailbox(username).add(message);
+                recipients++;
             }
         }
+        
+        // Every queue that kept the message has its own reference now, so an unsent message is freed here
+        message.release();
+        Flight.endDistribute(event, "message", recipients);
+    }
+    
+    /**
+     * Gives a typing or read event to the online users in a conversation, other than the sender.
+     * Events are never queued or kept on disk, so offline users don't get them.
+     * 
+     * @param from The username of the user the event is from
+     * @param chatId The ID of the chat the event is for, or -1 if it is for a user
+     * @param to The username of the user the event is for, or {@code null} if it is for a chat
+     * @param kind The kind of event, a constant in {@code Requestor} that starts with EVENT_*
+     * @param value The value of the event
+     * @param timestamp The time the server received the event
+     */
+    public static void distributeEvent(String from, int chatId, String to, int kind, long value, long timestamp) {
+        if(chatId >= 0) {
+            if(!hasChat(chatId)) {
+                return;
+            }
+            
+            // Every node gives the event to its own members
+            if(Cluster.ENABLED && !Cluster.isApplyingRemote()) {
+                Cluster.publishEvent(from, chatId, null, kind, value, timestamp);
+            }
+            
+            for(String member : getChat(chatId).members) {
+                if(!from.equals(member) && hasUser(member)) {
+                    getUser(member).events.put(from, chatId, kind, value, timestamp);
+                }
+            }
+        }
+        else if(hasUser(to)) {
+            getUser(to).events.put(from, -1, kind, value, timestamp);
+        }
+        else if(Cluster.hasRemoteUser(to) && !Cluster.isApplyingRemote()) {
+            Cluster.publishEvent(from, -1, to, kind, value, timestamp);
+        }
     }
     
     /**
@@ -283,10 +882,113 @@ public class Main {
      * @param update The update
      */
     public static void distributeChatUpdate(ChatRoom chat, int update) {
+        Object event = Flight.beginDistribute();
+        
+        if(Cluster.ENABLED && !Cluster.isApplyingRemote()) {
+            Cluster.publishChatUpdate(chat, update);
+        }
+        
         // Add updates to users so the update will not be removed from each user until they are given it
         for(User user : users) {
             user.addQueudChatUpdate(chat, update);
         }
+        
+        Flight.endDistribute(event, "chat update", users.size());
+    }
+    
+    /**
+     * Adds a user to a chat's members, and tells the other online members.
+     * This must only be called on the main thread.
+     * 
+     * @param chat The chat to join
+     * @param username The username of the user joining
+     */
+    public static void joinChat(ChatRoom chat, String username) {
+        if(chat.members.add(username)) {
+            distributeMemberUpdate(chat, username, true);
+        }
+    }
+    
+    /**
+     * Removes a user from a chat's members, and tells the other online members.
+     * This must only be called on the main thread.
+     * 
+     * @param chat The chat to leave
+     * @param username The username of the user leaving
+     */
+    public static void leaveChat(ChatRoom chat, String username) {
+        if(chat.members.remove(username)) {
+            distributeMemberUpdate(chat, username, false);
+        }
+    }
+    
+    private static void distributeMemberUpdate(ChatRoom chat, String username, boolean joined) {
+        if(Cluster.ENABLED && !Cluster.isApplyingRemote()) {
+            Cluster.publishMembership(chat, username, joined);
+        }
+        
+        for(String member : chat.members) {
+            if(!member.equals(username) && hasUser(member)) {
+                getUser(member).addQueudChatUpdate(chat, Requestor.CHANGE_MEMBERS_CHANGED);
+            }
+        }
+    }
+    
+    /**
+     * Distributes updates for many chats to all users in a single pass
+     * 
+     * @param chats The chats that have an update
+     * @param update The update
+     */
+    public static void distributeChatUpdates(List<ChatRoom> chats, int update) {
+        if(chats.isEmpty()) {
+            return;
+        }
+        
+        Object event = Flight.beginDistribute();
+        
+        if(Cluster.ENABLED && !Cluster.isApplyingRemote()) {
+            for(ChatRoom chat : chats) {
+                Cluster.publishChatUpdate(chat, update);
+            }
+        }
+        
+        for(User user : users) {
+            for(ChatRoom chat : chats) {
+                user.addQueudChatUpdate(chat, update);
+            }
+        }
+        
+        Flight.endDistribute(event, "chat updates", users.size());
+    }
+    
+    /**
+     * Distributes updates for many users to all users
+     * 
+     * @param updated The users that have an update
+     * @param update The update
+     */
+    public static void distributeUserUpdates(List<User> updated, int update) {
+        if(updated.isEmpty()) {
+            return;
+        }
+        
+        Object event = Flight.beginDistribute();
+        
+        // Only users logged in on this node are sent to other nodes
+        if(Cluster.ENABLED) {
+            for(User user : updated) {
+                if(user.requestor != null) {
+                    Cluster.publishUserUpdate(user, update);
+                }
+            }
+        }
+        
+        for(User user : updated) {
+            presence.add(user, update);
+        }
+        
+        Flight.endDistribute(event, "user updates", users.size());
     }
     
     /**
@@ -296,9 +998,16 @@ public class Main {
      * @param update The update
      */
     public static void distributeUserUpdate(User user, int update) {
-        // Add updates to users so the update will not be removed from each user until they are given it
-        for(User onlineUser : users) {
-            onlineUser.addQueudUserUpdate(user, update);
+        Object event = Flight.beginDistribute();
+        
+        // Only users logged in on this node are sent to other nodes
+        if(Cluster.ENABLED && user.requestor != null) {
+            Cluster.publishUserUpdate(user, update);
         }
+        
+        // Each user reads the shared stream, so this costs the same no matter how many users are online
+        presence.add(user, update);
+        
+        Flight.endDistribute(event, "user update", users.size());
     }
 }
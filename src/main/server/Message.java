@@ -1,38 +1,57 @@
 package main.server;
 
-import java.util.Optional;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 
 /**
+ * <P>
  * Holds data for messages send from users to chats or other users
+ * </P>
+ * <P>
+ * Users can have thousands of messages queued, so a message only keeps numbers and the UTF-8
+ * bytes of its contents. Users are kept as their number from {@code UserIds}, and whether the
+ * message is for a chat is kept in the sign of the number it was sent to.
+ * </P>
+ * <P>
+ * When {@code MessageArena} is enabled the contents are kept off the heap instead. Then each place
+ * that keeps the message, a user's queue or mailbox, holds a reference to it, and the contents are
+ * freed once the last one lets it go. Whoever makes a message holds the first reference.
+ * </P>
  */
 public class Message {
 
     /**
-     * The sender of the message
+     * The number of bytes a queued message uses, not counting its contents.
+     * This is the message and the array holding the contents, with compressed references.
      */
-    public final User from;
-
-    /**
-     * The addressed user. This may be empty if the message was
-     * addressed to a chat.
-     */
-    public final Optional<User> toUser;
+    public static final int OVERHEAD = 48 + 16;
     
     /**
-     * The addressed chat. This may be empty if the message was
-     * addressed to a user.
+     * The position of the message in its conversation, given by the server.
+     * Each chat, and each pair of users, has its own sequence.
      */
-    public final Optional<ChatRoom> toChat;
+    public final long sequence;
     
     /**
-     * The contents of the message
+     * The time the server received the message in milliseconds since the epoch
      */
-    public final String message;
+    public final long timestamp;
     
-    /**
-     * The {@code DateTimeFormatter.ZONED_ISO_DATE_TIME} formatted date/time at UTC
-     */
-    public final String date;
+    // The number of the sender in UserIds
+    private final int from;
+    
+    // The ID of the chat inverted so it is negative, or the number of the user in UserIds
+    private final int to;
+    
+    // The contents on the heap, or null if they are in the arena
+    private final byte[] message;
+    
+    // The handle of the contents in the arena, or -1 if they are on the heap
+    private final int body;
+    
+    private int references = 1;
     
     /**
      * Constructs a message object to send to a chat
@@ -40,10 +59,11 @@ public class Message {
      * @param from The user that sent the message
      * @param to The chatroom that the user sent the message to
      * @param message The contents of the message
-     * @param date The {@code DateTimeFormatter.ZONED_ISO_DATE_TIME} formatted date/time at UTC
+     * @param sequence The position of the message in the chat
+     * @param timestamp The time the server received the message
      */
-    public Message(User from, ChatRoom to, String message, String date) {
-        this(from, Optional.of(to), Optional.empty(), message, date);
+    public Message(User from, ChatRoom to, String message, long sequence, long timestamp) {
+        this(UserIds.of(from.username), ~to.id, message, sequence, timestamp);
     }
     
     /**
@@ -52,17 +72,125 @@ public class Message {
      * @param from The user that sent the message
      * @param to The user that the user sent the message to
      * @param message The contents of the message
-     * @param date The {@code DateTimeFormatter.ZONED_ISO_DATE_TIME} formatted date/time at UTC
+     * @param sequence The position of the message in the conversation between both users
+     * @param timestamp The time the server received the message
      */
-    public Message(User from, User to, String message, String date) {
-        this(from, Optional.empty(), Optional.of(to), message, date);
+    public Message(User from, User to, String message, long sequence, long timestamp) {
+        this(UserIds.of(from.username), UserIds.of(to.username), message, sequence, timestamp);
     }
     
-    private Message(User from, Optional<ChatRoom> toChat, Optional<User> toUser, String message, String date) {
+    private Message(int from, int to, String message, long sequence, long timestamp) {
         this.from = from;
-        this.toUser = toUser;
-        this.toChat = toChat;
-        this.message = message;
-        this.date = date;
+        this.to = to;
+        
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        this.body = MessageArena.ENABLED ? MessageArena.store(bytes) : -1;
+        this.message = body < 0 ? bytes : null;
+        
+        this.sequence = sequence;
+        this.timestamp = timestamp;
+    }
+    
+    /**
+     * Gets the username of the sender
+     * 
+     * @return The username of the user that sent the message
+     */
+    public String getFrom() {
+        return UserIds.username(from);
+    }
+    
+    /**
+     * Checks whether the message was sent to a chat or a user
+     * 
+     * @return Whether the message was sent to a chat
+     */
+    public boolean isToChat() {
+        return to < 0;
+    }
+    
+    /**
+     * Gets the chat the message was sent to
+     * 
+     * @return The ID of the chat
+     * @throws IllegalStateException If the message was sent to a user
+     */
+    public int getChatId() throws IllegalStateException {
+        if(!isToChat()) {
+            throw new IllegalStateException("Message was sent to a user");
+        }
+        
+        return ~to;
+    }
+    
+    /**
+     * Gets the user the message was sent to
+     * 
+     * @return The username of the user
+     * @throws IllegalStateException If the message was sent to a chat
+     */
+    public String getToUser() throws IllegalStateException {
+        if(isToChat()) {
+            throw new IllegalStateException("Message was sent to a chat");
+        }
+        
+        return UserIds.username(to);
+    }
+    
+    /**
+     * Gets the contents of the message
+     * 
+     * @return The contents of the message
+     */
+    public String getMessage() {
+        if(message != null) {
+            return new String(message, StandardCharsets.UTF_8);
+        }
+        if(references == 0) {
+            throw new IllegalStateException("Message was already freed");
+        }
+        
+        return MessageArena.read(body);
+    }
+    
+    /**
+     * Adds a reference to the message, for a queue or mailbox that keeps it
+     */
+    public void retain() {
+        references++;
+    }
+    
+    /**
+     * Removes a reference to the message, freeing its contents if it was the last one.
+     * The contents can't be read once they are freed.
+     */
+    public void release() {
+        references--;
+        if(references == 0 && message == null) {
+            MessageArena.free(body);
+        }
+    }
+    
+    /**
+     * Estimates the number of bytes this message uses while queued
+     * 
+     * @return The estimated size in bytes
+     */
+    public int getSize() {
+        // Contents in the arena still count, so the budget for each user stays the same
+        int length = message != null ? message.length : MessageArena.length(body);
+        
+        // Arrays are padded to 8 bytes
+        return OVERHEAD + ((length + 7) & ~7);
+    }
+    
+    /**
+     * Formats a timestamp the way older clients expect dates to be sent
+     * 
+     * @param timestamp The time in milliseconds since the epoch
+     * @return The {@code DateTimeFormatter.ZONED_ISO_DATE_TIME} formatted date/time at UTC
+     */
+    public static String formatDate(long timestamp) {
+        return DateTimeFormatter.ISO_ZONED_DATE_TIME.format(Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC));
     }
 }
@@ -0,0 +1,196 @@
+package main.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * <P>
+ * Keeps the contents of queued messages outside the Java heap, in direct buffers of
+ * {@code CHUNK_SIZE} bytes, so millions of queued messages don't make the garbage collector
+ * pause every client. This is only used when {@code CHUNK_SIZE} is more than 0.
+ * </P>
+ * <P>
+ * Each chunk is split into slots of one size, a power of 2 from {@code MIN_SLOT} to
+ * {@code MAX_SLOT} bytes, and a message uses the smallest slot it fits in along with 2 bytes
+ * for its length. Freed slots go on a list for their size and are reused before any new chunk
+ * is made, so memory is never given back to the system but never grows past the most that was
+ * queued at once. A message is found by an int handle holding its chunk and its slot in the chunk.
+ * This must only be used on the main thread.
+ * </P>
+ */
+public class MessageArena {
+
+    /**
+     * The size of each direct buffer, or 0 to keep messages on the heap.
+     * This can be set with the server.offHeapChunk system property.
+     */
+    public static final int CHUNK_SIZE = Integer.getInteger("server.offHeapChunk", 0);
+    
+    /**
+     * Whether message contents are kept off the heap
+     */
+    public static final boolean ENABLED = CHUNK_SIZE > 0;
+    
+    /**
+     * The smallest slot in bytes
+     */
+    public static final int MIN_SLOT = 16;
+    
+    /**
+     * The largest slot in bytes, which fits the longest message that can be sent
+     */
+    public static final int MAX_SLOT = 4096;
+    
+    // Size classes are numbered from 0 for MIN_SLOT
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SLOT) - Integer.numberOfTrailingZeros(MIN_SLOT) + 1;
+    
+    // Handles have 15 bits for the chunk and 16 bits for the slot, so they are never negative
+    private static final int MAX_CHUNKS = 0x8000;
+    private static final int MAX_SLOTS = 0x10000;
+    
+    private static final List<ByteBuffer> chunks = new ArrayList<>();
+    private static final byte[] chunkClasses = new byte[MAX_CHUNKS];
+    
+    // The handles of the free slots of each size, used as stacks
+    private static final int[][] free = new int[CLASSES][];
+    private static final int[] freeCount = new int[CLASSES];
+    
+    // Decoding needs an array, so reuse one instead of making one for every message
+    private static final byte[] scratch = new byte[MAX_SLOT];
+    
+    // Only the main thread changes these, but the console thread reads them for /stats
+    private static volatile long used = 0;
+    private static volatile long reserved = 0;
+    
+    static {
+        for(int i = 0; i < CLASSES; i++) {
+            free[i] = new int[16];
+        }
+    }
+    
+    /**
+     * Copies the contents of a message into the arena
+     * 
+     * @param bytes The contents of the message as UTF-8
+     * @return The handle to read and free the contents with, or -1 if it has to be kept on the heap
+     */
+    public static int store(byte[] bytes) {
+        int sizeClass = sizeClass(bytes.length + 2);
+        if(bytes.length + 2 > MAX_SLOT || (freeCount[sizeClass] == 0 && !addChunk(sizeClass))) {
+            return -1;
+        }
+        int handle = free[sizeClass][--freeCount[sizeClass]];
+        
+        ByteBuffer chunk = chunks.get(handle >>> 16);
+        int offset = offset(handle);
+        chunk.putShort(offset, (short) bytes.length);
+        for(int i = 0; i < bytes.length; i++) {
+            chunk.put(offset + 2 + i, bytes[i]);
+        }
+        
+        used += MIN_SLOT << sizeClass;
+        return handle;
+    }
+    
+    /**
+     * Reads the contents of a message
+     * 
+     * @param handle The handle from {@code store}
+     * @return The contents of the message
+     */
+    public static String read(int handle) {
+        ByteBuffer chunk = chunks.get(handle >>> 16);
+        int offset = offset(handle);
+        int length = chunk.getShort(offset) & 0xFFFF;
+        for(int i = 0; i < length; i++) {
+            scratch[i] = chunk.get(offset + 2 + i);
+        }
+        
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+    
+    /**
+     * Gets the length of the contents of a message
+     * 
+     * @param handle The handle from {@code store}
+     * @return The length of the contents in UTF-8
+     */
+    public static int length(int handle) {
+        return chunks.get(handle >>> 16).getShort(offset(handle)) & 0xFFFF;
+    }
+    
+    /**
+     * Gives the slot of a message back so it can be used again
+     * 
+     * @param handle The handle from {@code store}, which must not be used afterwards
+     */
+    public static void free(int handle) {
+        int sizeClass = chunkClasses[handle >>> 16];
+        if(freeCount[sizeClass] == free[sizeClass].length) {
+            free[sizeClass] = Arrays.copyOf(free[sizeClass], freeCount[sizeClass] * 2);
+        }
+        
+        free[sizeClass][freeCount[sizeClass]++] = handle;
+        used -= MIN_SLOT << sizeClass;
+    }
+    
+    /**
+     * Gets the number of bytes of slots that hold messages
+     * 
+     * @return The bytes in use
+     */
+    public static long getUsed() {
+        return used;
+    }
+    
+    /**
+     * Gets the number of bytes of direct buffers that were made
+     * 
+     * @return The bytes reserved outside the heap
+     */
+    public static long getReserved() {
+        return reserved;
+    }
+    
+    private static boolean addChunk(int sizeClass) {
+        // Handles only have room for this many chunks
+        if(chunks.size() == MAX_CHUNKS) {
+            return false;
+        }
+        
+        int slotSize = MIN_SLOT << sizeClass;
+        int slots = Math.max(1, Math.min(CHUNK_SIZE / slotSize, MAX_SLOTS));
+        
+        int index = chunks.size();
+        chunks.add(ByteBuffer.allocateDirect(slots * slotSize));
+        reserved += slots * slotSize;
+        chunkClasses[index] = (byte) sizeClass;
+        
+        if(free[sizeClass].length < slots) {
+            free[sizeClass] = Arrays.copyOf(free[sizeClass], slots);
+        }
+        
+        // Hand out the start of the chunk first
+        for(int i = slots - 1; i >= 0; i--) {
+            free[sizeClass][freeCount[sizeClass]++] = index << 16 | i;
+        }
+        
+        return true;
+    }
+    
+    private static int sizeClass(int length) {
+        if(length <= MIN_SLOT) {
+            return 0;
+        }
+        
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_SLOT);
+    }
+    
+    private static int offset(int handle) {
+        int slotSize = MIN_SLOT << chunkClasses[handle >>> 16];
+        return (handle & 0xFFFF) * slotSize;
+    }
+}
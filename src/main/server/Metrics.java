@@ -0,0 +1,116 @@
+package main.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for things that are useful to know about a running server.
+ * These can be printed with the /stats console command.
+ */
+public class Metrics {
+
+    /**
+     * Users are counted as near their budget once they have this fraction of it queued
+     */
+    public static final double NEAR_BUDGET = 0.8;
+    
+    /**
+     * The number of times a user went over their budget
+     */
+    public static final AtomicLong budgetExceeded = new AtomicLong();
+    
+    /**
+     * The number of messages thrown away because a user was over budget
+     */
+    public static final AtomicLong messagesDropped = new AtomicLong();
+    
+    /**
+     * The number of messages moved to a mailbox because a user was over budget
+     */
+    public static final AtomicLong messagesSpilled = new AtomicLong();
+    
+    /**
+     * The number of users logged out because they were over budget
+     */
+    public static final AtomicLong slowConsumersDisconnected = new AtomicLong();
+    
+    /**
+     * The number of requests refused by a rate limit
+     */
+    public static final AtomicLong requestsRateLimited = new AtomicLong();
+    
+    /**
+     * The number of times a client missed too many user updates and was sent every online user instead
+     */
+    public static final AtomicLong rosterResets = new AtomicLong();
+    
+    /**
+     * The number of replies that were sent compressed
+     */
+    public static final AtomicLong repliesCompressed = new AtomicLong();
+    
+    /**
+     * The total size of compressed replies before compression
+     */
+    public static final AtomicLong bytesBeforeCompression = new AtomicLong();
+    
+    /**
+     * The total size of compressed replies after compression
+     */
+    public static final AtomicLong bytesAfterCompression = new AtomicLong();
+    
+    /**
+     * The number of messages that were resent with the same client message ID and not sent again
+     */
+    public static final AtomicLong duplicateSends = new AtomicLong();
+    
+    /**
+     * The number of access log entries dropped because the writer was too far behind
+     */
+    public static final AtomicLong accessLogDropped = new AtomicLong();
+    
+    /**
+     * The number of requests left out of the capture because the writer was too far behind
+     */
+    public static final AtomicLong captureDropped = new AtomicLong();
+    
+    /**
+     * Counts the users that have at least {@code NEAR_BUDGET} of their budget queued
+     * 
+     * @return The number of users near their budget
+     */
+    public static int usersNearBudget() {
+        int count = 0;
+        // This runs on the console thread, so it can only look at the snapshot
+        for(User user : Main.userSnapshot) {
+            if(user.getQueuedBytes() >= User.BUDGET * NEAR_BUDGET) {
+                count++;
+            }
+        }
+        
+        return count;
+    }
+    
+    /**
+     * Creates a readable summary of all metrics
+     * 
+     * @return The summary, one metric per line
+     */
+    public static String summary() {
+        return "Users near budget: " + usersNearBudget() + "\n"
+             + "Budget exceeded: " + budgetExceeded.get() + "\n"
+             + "Messages dropped: " + messagesDropped.get() + "\n"
+             + "Messages spilled: " + messagesSpilled.get() + "\n"
+             + "Slow consumers disconnected: " + slowConsumersDisconnected.get() + "\n"
+             + "Requests rate limited: " + requestsRateLimited.get() + "\n"
+             + "Roster resets: " + rosterResets.get() + "\n"
+             + "Duplicate sends: " + duplicateSends.get() + "\n"
+             + "Requests waiting: " + RequestLanes.getWaiting(RequestLanes.CONTROL) + " control, "
+             + RequestLanes.getWaiting(RequestLanes.INTERACTIVE) + " interactive, "
+             + RequestLanes.getWaiting(RequestLanes.BULK) + " bulk\n"
+             + "Access log entries dropped: " + accessLogDropped.get() + "\n"
+             + "Capture records dropped: " + captureDropped.get() + "\n"
+             + "Replies compressed: " + repliesCompressed.get() + " (" + bytesBeforeCompression.get()
+             + " bytes to " + bytesAfterCompression.get() + " bytes)\n"
+             + "Off-heap message bytes: " + MessageArena.getUsed() + " used of " + MessageArena.getReserved() + " reserved";
+    }
+}
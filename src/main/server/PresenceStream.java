@@ -0,0 +1,91 @@
+package main.server;
+
+import java.util.NoSuchElementException;
+
+/**
+ * <P>
+ * A shared list of user updates that every online user reads from, instead of each user
+ * having their own queue. Each update is given an epoch, which counts up from 0, and each user
+ * only keeps the epoch of the next update they haven't been given. Adding an update costs the
+ * same no matter how many users are online.
+ * </P>
+ * <P>
+ * Only the newest {@code CAPACITY} updates are kept. A user that falls further behind than that
+ * is given the whole user list instead, which is less than replaying everything it missed.
+ * This must only be used on the main thread.
+ * </P>
+ */
+public class PresenceStream {
+
+    /**
+     * The most updates kept for users that are behind.
+     * This can be set with the server.presenceHistory system property.
+     */
+    public static final int CAPACITY = Integer.getInteger("server.presenceHistory", 16384);
+    
+    private final User[] users = new User[CAPACITY];
+    private final int[] updates = new int[CAPACITY];
+    private long epoch = 0;
+    
+    /**
+     * Adds an update to the end of the stream
+     * 
+     * @param user The user that has an update
+     * @param update The update, a constant in {@code Requestor} that starts with CHANGE_*
+     */
+    public void add(User user, int update) {
+        int index = (int) (epoch % CAPACITY);
+        users[index] = user;
+        updates[index] = update;
+        epoch++;
+    }
+    
+    /**
+     * Gets the epoch the next update will be given
+     * 
+     * @return The epoch after the newest update
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+    
+    /**
+     * Checks whether the updates starting at an epoch are still kept
+     * 
+     * @param cursor The epoch of the first update a user hasn't been given
+     * @return Whether the user can still be given every update they missed
+     */
+    public boolean isAvailable(long cursor) {
+        return cursor >= epoch - CAPACITY;
+    }
+    
+    /**
+     * Gets the user an update is for
+     * 
+     * @param cursor The epoch of the update
+     * @return The user the update is for
+     * @throws NoSuchElementException If there is no update at that epoch, or it is no longer kept
+     */
+    public User getUser(long cursor) throws NoSuchElementException {
+        check(cursor);
+        return users[(int) (cursor % CAPACITY)];
+    }
+    
+    /**
+     * Gets an update
+     * 
+     * @param cursor The epoch of the update
+     * @return The update, a constant in {@code Requestor} that starts with CHANGE_*
+     * @throws NoSuchElementException If there is no update at that epoch, or it is no longer kept
+     */
+    public int getUpdate(long cursor) throws NoSuchElementException {
+        check(cursor);
+        return updates[(int) (cursor % CAPACITY)];
+    }
+    
+    private void check(long cursor) {
+        if(cursor >= epoch || !isAvailable(cursor)) {
+            throw new NoSuchElementException();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package main.server;
+
+/**
+ * Holds the data for a username that is kept after the user logs out,
+ * and is saved in snapshots so it survives a restart
+ */
+public class Profile {
+
+    /**
+     * The unique username of the user
+     */
+    public final String username;
+    
+    /**
+     * The last nickname the user had
+     */
+    public String nickname;
+    
+    /**
+     * The hash of the user's profile picture in the {@code BlobStore}, or {@code null} if they don't have one
+     */
+    public String picture;
+    
+    /**
+     * Creates a profile
+     * 
+     * @param username The unique username of the user
+     * @param nickname The nickname of the user
+     * @param picture The hash of the user's profile picture, or {@code null}
+     */
+    public Profile(String username, String nickname, String picture) {
+        this.username = username;
+        this.nickname = nickname;
+        this.picture = picture;
+    }
+}
@@ -0,0 +1,136 @@
+package main.server;
+
+/**
+ * <P>
+ * Token buckets that limit how fast a single requester can make requests.
+ * </P>
+ * <P>
+ * Each requester has one bucket for all requests, and one bucket for each request code
+ * that has its own limit. A limit is a rate of requests per second and a burst, which is
+ * how many requests can be made at once after being idle.
+ * </P>
+ * <P>
+ * Limits can be set with system properties. server.rateLimit sets the limit for all requests, and
+ * server.rateLimit.&lt;request code&gt; sets the limit for a single request code. Both take
+ * a value of &lt;rate&gt;,&lt;burst&gt;, and a rate of 0 turns the limit off.
+ * </P>
+ */
+public class RateLimiter {
+
+    /**
+     * Request codes from 0 up to this can have their own limit
+     */
+    public static final int MAX_REQUEST_CODES = 64;
+    
+    // Limits shared by all requesters, in tokens per nanosecond and tokens
+    private static final double totalRate;
+    private static final double totalBurst;
+    private static final double[] rates = new double[MAX_REQUEST_CODES];
+    private static final double[] bursts = new double[MAX_REQUEST_CODES];
+    
+    static {
+        double[] limit = parseLimit("server.rateLimit", 200, 400);
+        totalRate = limit[0];
+        totalBurst = limit[1];
+        
+        for(int code = 0; code < MAX_REQUEST_CODES; code++) {
+            limit = parseLimit("server.rateLimit." + code, 0, 0);
+            rates[code] = limit[0];
+            bursts[code] = limit[1];
+        }
+        
+        // Requests that cost the most for the server have limits by default
+        if(System.getProperty("server.rateLimit." + Requestor.REQUEST_SEND_MESSAGE) == null) {
+            rates[Requestor.REQUEST_SEND_MESSAGE] = 20 / 1e9;
+            bursts[Requestor.REQUEST_SEND_MESSAGE] = 40;
+        }
+        if(System.getProperty("server.rateLimit." + Requestor.REQUEST_SET_USER_PICTURE) == null) {
+            rates[Requestor.REQUEST_SET_USER_PICTURE] = 1 / 1e9;
+            bursts[Requestor.REQUEST_SET_USER_PICTURE] = 3;
+        }
+        if(System.getProperty("server.rateLimit." + Requestor.REQUEST_SEND_EVENT) == null) {
+            rates[Requestor.REQUEST_SEND_EVENT] = 10 / 1e9;
+            bursts[Requestor.REQUEST_SEND_EVENT] = 20;
+        }
+        if(System.getProperty("server.rateLimit." + Requestor.REQUEST_UPLOAD_PICTURE) == null) {
+            rates[Requestor.REQUEST_UPLOAD_PICTURE] = 1 / 1e9;
+            bursts[Requestor.REQUEST_UPLOAD_PICTURE] = 3;
+        }
+    }
+    
+    private static double[] parseLimit(String property, double rate, double burst) {
+        String value = System.getProperty(property);
+        
+        if(value != null) {
+            String[] parts = value.split(",");
+            rate = Double.parseDouble(parts[0].trim());
+            burst = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : rate;
+        }
+        
+        return new double[] { rate / 1e9, Math.max(burst, 1) };
+    }
+    
+    // Tokens left and when they were last refilled, in nanoseconds
+    private double totalTokens;
+    private long totalUpdated;
+    private final double[] tokens = new double[MAX_REQUEST_CODES];
+    private final long[] updated = new long[MAX_REQUEST_CODES];
+    
+    /**
+     * Creates a set of full buckets for a new requester
+     */
+    public RateLimiter() {
+        long now = System.nanoTime();
+        
+        totalTokens = totalBurst;
+        totalUpdated = now;
+        
+        for(int code = 0; code < MAX_REQUEST_CODES; code++) {
+            tokens[code] = bursts[code];
+            updated[code] = now;
+        }
+    }
+    
+    /**
+     * Takes a token for a request if one is available
+     * 
+     * @param requestCode The request code of the request
+     * @param countTotal Whether the request should also count against the limit for all requests
+     * @return 0 if the request is allowed, or the number of milliseconds until it would be
+     */
+    public long take(int requestCode, boolean countTotal) {
+        long now = System.nanoTime();
+        boolean limitCode = requestCode >= 0 && requestCode < MAX_REQUEST_CODES && rates[requestCode] > 0;
+        
+        // Refill both buckets for the time that passed, up to their burst size
+        if(countTotal && totalRate > 0) {
+            totalTokens = Math.min(totalBurst, totalTokens + (now - totalUpdated) * totalRate);
+            totalUpdated = now;
+        }
+        if(limitCode) {
+            tokens[requestCode] = Math.min(bursts[requestCode], tokens[requestCode] + (now - updated[requestCode]) * rates[requestCode]);
+            updated[requestCode] = now;
+        }
+        
+        // Only take tokens if both buckets have one, so a rejected request costs nothing
+        long wait = 0;
+        if(countTotal && totalRate > 0 && totalTokens < 1) {
+            wait = Math.max(wait, (long) Math.ceil((1 - totalTokens) / totalRate / 1e6));
+        }
+        if(limitCode && tokens[requestCode] < 1) {
+            wait = Math.max(wait, (long) Math.ceil((1 - tokens[requestCode]) / rates[requestCode] / 1e6));
+        }
+        if(wait > 0) {
+            return wait;
+        }
+        
+        if(countTotal && totalRate > 0) {
+            totalTokens--;
+        }
+        if(limitCode) {
+            tokens[requestCode]--;
+        }
+        
+        return 0;
+    }
+}
@@ -0,0 +1,329 @@
+package main.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <P>
+ * Records every request the server is sent, and every console and admin command, to a file
+ * so that {@code CaptureReplay} can send the same traffic to another build later. Requests are
+ * kept exactly as they arrived, so the worker UUID is the first line of each one and compressed
+ * requests stay compressed. This is only used when {@code FILE} is set.
+ * </P>
+ * <P>
+ * The file starts with {@code MAGIC}. Each record after it is a kind byte, the microseconds since the
+ * record before it, the length of the request and the request, then the length of the upload data
+ * plus one and the data, or 0 if there was none. Every number is written 7 bits at a time, lowest first,
+ * with the high bit set on every byte but the last. Like the access log, the main thread puts records
+ * in a ring buffer and a background thread writes them, and records that don't fit are dropped and
+ * counted in {@code Metrics.captureDropped}. Records must only be added on the main thread.
+ * </P>
+ */
+public class RequestCapture {
+
+    /**
+     * The file to record to, or an empty String to not record.
+     * This can be set with the server.capture system property.
+     */
+    public static final String FILE = System.getProperty("server.capture", "");
+    
+    /**
+     * The most records waiting to be written, a power of 2.
+     * This can be set with the server.captureBuffer system property.
+     */
+    public static final int CAPACITY = Integer.highestOneBit(Math.max(2, Integer.getInteger("server.captureBuffer", 65536)));
+    
+    /**
+     * The bytes every capture file starts with
+     */
+    public static final byte[] MAGIC = "MSGCAP1\n".getBytes(StandardCharsets.US_ASCII);
+    
+    /**
+     * A record of a request from a client
+     */
+    public static final byte REQUEST = 0;
+    
+    /**
+     * A record of a console or admin command, which is sent as the request
+     */
+    public static final byte COMMAND = 1;
+    
+    // How long the writer waits when there is nothing to write
+    private static final long IDLE_WAIT = 50;
+    
+    private static final byte[] kinds = new byte[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final byte[][] requests = new byte[CAPACITY][];
+    private static final byte[][] payloads = new byte[CAPACITY][];
+    
+    // The main thread only moves head, and the writer only moves tail
+    private static volatile long head = 0;
+    private static volatile long tail = 0;
+    
+    private static volatile boolean running = false;
+    private static Thread writer;
+    
+    /**
+     * A request or command read back from a capture file
+     */
+    public static class Record {
+        
+        /**
+         * {@code REQUEST} or {@code COMMAND}
+         */
+        public final byte kind;
+        
+        /**
+         * The microseconds since the first record
+         */
+        public final long time;
+        
+        /**
+         * The request as it arrived, or the command as UTF-8
+         */
+        public final byte[] request;
+        
+        /**
+         * The upload data sent with the request, or {@code null}
+         */
+        public final byte[] payload;
+        
+        private Record(byte kind, long time, byte[] request, byte[] payload) {
+            this.kind = kind;
+            this.time = time;
+            this.request = request;
+            this.payload = payload;
+        }
+    }
+    
+    /**
+     * Reads the records of a capture file in order
+     */
+    public static class Reader implements Closeable {
+        
+        private final DataInputStream in;
+        private long time = 0;
+        
+        /**
+         * Opens a capture file
+         * 
+         * @param file The file written by {@code RequestCapture}
+         * @throws IOException If the file can't be read or isn't a capture file
+         */
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            
+            byte[] magic = new byte[MAGIC.length];
+            try {
+                in.readFully(magic);
+            }
+            catch(EOFException e) {
+                magic = null;
+            }
+            if(!Arrays.equals(magic, MAGIC)) {
+                in.close();
+                throw new IOException(file + " is not a capture file");
+            }
+        }
+        
+        /**
+         * Reads the next record
+         * 
+         * @return The record, or {@code null} at the end of the file
+         * @throws IOException If the file can't be read or ends in the middle of a record
+         */
+        public Record next() throws IOException {
+            int kind = in.read();
+            if(kind < 0) {
+                return null;
+            }
+            
+            time += readNumber(in);
+            byte[] request = new byte[(int) readNumber(in)];
+            in.readFully(request);
+            
+            byte[] payload = null;
+            int payloadLength = (int) readNumber(in);
+            if(payloadLength > 0) {
+                payload = new byte[payloadLength - 1];
+                in.readFully(payload);
+            }
+            
+            return new Record((byte) kind, time, request, payload);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+    
+    /**
+     * Starts the thread that writes the capture, unless there is no capture file
+     */
+    public static void start() {
+        if(FILE.isEmpty()) {
+            return;
+        }
+        
+        running = true;
+        writer = new Thread(RequestCapture::write, "request-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * Writes every record that is left and stops the writer thread
+     * 
+     * @throws InterruptedException If interrupted while waiting for the writer
+     */
+    public static void stop() throws InterruptedException {
+        if(writer == null) {
+            return;
+        }
+        
+        running = false;
+        writer.join(5000);
+    }
+    
+    /**
+     * Records a request from a client
+     * 
+     * @param request The request as it arrived
+     * @param payload The upload data sent with the request, or {@code null}
+     * @param received The time the request was received from {@code System.nanoTime}
+     */
+    public static void addRequest(byte[] request, byte[] payload, long received) {
+        add(REQUEST, request, payload, received);
+    }
+    
+    /**
+     * Records a console or admin command
+     * 
+     * @param line The command
+     */
+    public static void addCommand(String line) {
+        if(running) {
+            add(COMMAND, line.getBytes(StandardCharsets.UTF_8), null, System.nanoTime());
+        }
+    }
+    
+    private static void add(byte kind, byte[] request, byte[] payload, long time) {
+        if(!running) {
+            return;
+        }
+        
+        long position = head;
+        if(position - tail >= CAPACITY) {
+            Metrics.captureDropped.incrementAndGet();
+            return;
+        }
+        
+        // The sockets give every request its own arrays, so they can be kept without copying
+        int index = (int) (position & (CAPACITY - 1));
+        kinds[index] = kind;
+        times[index] = time;
+        requests[index] = request;
+        payloads[index] = payload;
+        
+        // Publish the record only once every field is set
+        head = position + 1;
+    }
+    
+    private static void write() {
+        File file = Main.file(FILE);
+        if(file.getAbsoluteFile().getParentFile() != null) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        
+        DataOutputStream out = null;
+        long last = -1;
+        
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+            out.write(MAGIC);
+            
+            while(running || tail < head) {
+                long end = head;
+                if(tail == end) {
+                    LockSupport.parkNanos(IDLE_WAIT * 1000000);
+                    continue;
+                }
+                
+                for(long position = tail; position < end; position++) {
+                    int index = (int) (position & (CAPACITY - 1));
+                    long time = times[index] / 1000;
+                    
+                    out.write(kinds[index]);
+                    writeNumber(out, last < 0 ? 0 : Math.max(0, time - last));
+                    writeNumber(out, requests[index].length);
+                    out.write(requests[index]);
+                    if(payloads[index] != null) {
+                        writeNumber(out, payloads[index].length + 1);
+                        out.write(payloads[index]);
+                    }
+                    else {
+                        writeNumber(out, 0);
+                    }
+                    last = Math.max(last, time);
+                    
+                    requests[index] = null;
+                    payloads[index] = null;
+                    tail = position + 1;
+                }
+                
+                out.flush();
+            }
+        }
+        catch(IOException e) {
+            System.out.println("Could not write capture: " + e.getMessage());
+            running = false;
+        }
+        finally {
+            if(out != null) {
+                try {
+                    out.close();
+                }
+                catch(IOException e) {
+                    System.out.println("Could not close capture: " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private static void writeNumber(OutputStream out, long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+    
+    private static long readNumber(InputStream in) throws IOException {
+        long value = 0;
+        for(int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if(b < 0) {
+                throw new EOFException("Capture ends in the middle of a record");
+            }
+            
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package main.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+
+/**
+ * <P>
+ * Holds the requests that have arrived but haven't been handled yet, in a lane for each class of
+ * request, so a pile of uploads or history pages never holds up the keep alives behind it.
+ * </P>
+ * <P>
+ * Control requests, which are logging in, resuming, logging out and keep alives, are always handled
+ * before anything else. After that, up to {@code INTERACTIVE_WEIGHT} interactive requests are handled for
+ * every {@code BULK_WEIGHT} bulk requests, so bulk requests are slowed down but never stopped. Bulk
+ * requests are the ones that move pictures or catch a client up, and everything else is interactive.
+ * Requests in a lane are handled in the order they arrived.
+ * </P>
+ * <P>
+ * A client can send more requests without waiting for the replies, so a lane holds at most
+ * {@code CAPACITY} requests and a requester can have at most {@code MAX_PER_REQUESTER} waiting.
+ * Requests past either limit are replied to straight away with {@code Requestor.RESULT_RATE_LIMITED}
+ * and counted in {@code Metrics.requestsRateLimited}, so the lanes can't grow without limit.
+ * This must only be used on the main thread.
+ * </P>
+ */
+public class RequestLanes {
+
+    /**
+     * The lane for requests that keep a client connected
+     */
+    public static final int CONTROL = 0;
+    
+    /**
+     * The lane for requests a user is waiting on
+     */
+    public static final int INTERACTIVE = 1;
+    
+    /**
+     * The lane for requests that move a lot of data
+     */
+    public static final int BULK = 2;
+    
+    /**
+     * How many interactive requests are handled in each round.
+     * This can be set with the server.laneWeights system property as &lt;interactive&gt;,&lt;bulk&gt;.
+     */
+    public static final int INTERACTIVE_WEIGHT;
+    
+    /**
+     * How many bulk requests are handled in each round.
+     * This can be set with the server.laneWeights system property as &lt;interactive&gt;,&lt;bulk&gt;.
+     */
+    public static final int BULK_WEIGHT;
+    
+    /**
+     * The most requests that can wait in one lane.
+     * This can be set with the server.laneCapacity system property.
+     */
+    public static final int CAPACITY = Math.max(1, Integer.getInteger("server.laneCapacity", 4096));
+    
+    /**
+     * The most requests one requester can have waiting in all lanes
+     */
+    public static final int MAX_PER_REQUESTER = 8;
+    
+    /**
+     * The milliseconds a client whose request was refused is told to wait before trying again
+     */
+    public static final int RETRY_AFTER = 100;
+    
+    static {
+        String[] weights = System.getProperty("server.laneWeights", "8,1").split(",");
+        INTERACTIVE_WEIGHT = Math.max(1, Integer.parseInt(weights[0].trim()));
+        BULK_WEIGHT = Math.max(1, weights.length > 1 ? Integer.parseInt(weights[1].trim()) : 1);
+    }
+    
+    // A request waiting in a lane, and where to send its reply
+    private static class Request {
+        
+        final String worker;
+        final byte[] request;
+        final byte[] payload;
+        final long received;
+        final Consumer<byte[][]> reply;
+        
+        Request(String worker, byte[] request, byte[] payload, long received, Consumer<byte[][]> reply) {
+            this.worker = worker;
+            this.request = request;
+            this.payload = payload;
+            this.received = received;
+            this.reply = reply;
+        }
+    }
+    
+    private static final List<ArrayDeque<Request>> lanes = Arrays.asList(new ArrayDeque<>(), new ArrayDeque<>(), new ArrayDeque<>());
+    
+    // Only the main thread changes these, but the console thread reads them for /stats
+    private static final AtomicIntegerArray waiting = new AtomicIntegerArray(lanes.size());
+    
+    // The number of requests each requester has waiting, only for requesters that have any
+    private static final Map<String, Integer> waitingByWorker = new HashMap<>();
+    
+    /**
+     * Puts a request in its lane to be handled by {@code handle}. A compressed request is
+     * decompressed here, once. A request that can't be decompressed, or that is past the limits
+     * on waiting requests, is replied to straight away.
+     * 
+     * @param request The request, which may be compressed
+     * @param payload The data for an upload, or {@code null}
+     * @param received The time the request was received from {@code System.nanoTime}
+     * @param reply Sends the frames from {@code Main.handleRequest} back to the client, on the main thread
+     */
+    public static void add(byte[] request, byte[] payload, long received, Consumer<byte[][]> reply) {
+        RequestCapture.addRequest(request, payload, received);
+        
+        try {
+            request = Compression.decompress(request);
+        }
+        catch(DataFormatException e) {
+            reply.accept(new byte[][] {String.valueOf(Requestor.RESULT_BAD_REQUEST).getBytes(StandardCharsets.UTF_8)});
+            return;
+        }
+        
+        // Only the first two lines are needed, so don't make a String of the whole request
+        String worker = null;
+        int lane = INTERACTIVE;
+        int end = indexOf(request, 0);
+        if(end > 0) {
+            worker = new String(request, 0, end, StandardCharsets.UTF_8);
+            lane = laneOf(parseCode(request, end + 1));
+        }
+        
+        int queued = worker != null ? waitingByWorker.getOrDefault(worker, 0) : 0;
+        if(lanes.get(lane).size() >= CAPACITY || queued >= MAX_PER_REQUESTER) {
+            Metrics.requestsRateLimited.incrementAndGet();
+            reply.accept(new byte[][] {(Requestor.RESULT_RATE_LIMITED + "\n" + RETRY_AFTER).getBytes(StandardCharsets.UTF_8)});
+            return;
+        }
+        
+        if(worker != null) {
+            waitingByWorker.put(worker, queued + 1);
+        }
+        lanes.get(lane).add(new Request(worker, request, payload, received, reply));
+        waiting.incrementAndGet(lane);
+    }
+    
+    /**
+     * Handles every waiting control request, and one round of the other lanes
+     */
+    public static void handle() {
+        int interactive = 0;
+        int bulk = 0;
+        
+        while(true) {
+            // Control requests go first, even in the middle of a round
+            Request next = poll(CONTROL);
+            if(next == null && interactive < INTERACTIVE_WEIGHT) {
+                next = poll(INTERACTIVE);
+                interactive++;
+            }
+            if(next == null && bulk < BULK_WEIGHT) {
+                next = poll(BULK);
+                bulk++;
+            }
+            if(next == null) {
+                return;
+            }
+            
+            next.reply.accept(Main.handleRequest(next.request, next.payload, next.received, false));
+        }
+    }
+    
+    /**
+     * Checks whether a requester has a request waiting, so it isn't kicked for a keep alive that hasn't been handled yet
+     * 
+     * @param worker The UUID of the requester
+     * @return Whether it has a request in any lane
+     */
+    public static boolean hasWaiting(String worker) {
+        return waitingByWorker.containsKey(worker);
+    }
+    
+    /**
+     * Gets the number of requests waiting in a lane
+     * 
+     * @param lane {@code CONTROL}, {@code INTERACTIVE} or {@code BULK}
+     * @return The number of requests waiting
+     */
+    public static int getWaiting(int lane) {
+        return waiting.get(lane);
+    }
+    
+    /**
+     * Finds the lane for a request code
+     * 
+     * @param code The request code
+     * @return {@code CONTROL}, {@code INTERACTIVE} or {@code BULK}
+     */
+    public static int laneOf(int code) {
+        switch(code) {
+            case Requestor.REQUEST_LOGIN:
+            case Requestor.REQUEST_RESUME:
+            case Requestor.REQUEST_LOGOUT:
+            case Requestor.REQUEST_KEEP_ALIVE:
+                return CONTROL;
+            case Requestor.REQUEST_CHAT_UPDATES:
+            case Requestor.REQUEST_USER_UPDATES:
+            case Requestor.REQUEST_USER_PICTURE:
+            case Requestor.REQUEST_SET_USER_PICTURE:
+            case Requestor.REQUEST_CHAT_HISTORY:
+            case Requestor.REQUEST_BLOB_CHUNK:
+            case Requestor.REQUEST_UPLOAD_PICTURE:
+            case Requestor.REQUEST_UPLOAD_PICTURE_CHUNK:
+            case Requestor.REQUEST_FINISH_PICTURE_UPLOAD:
+            case Requestor.REQUEST_SEARCH:
+                return BULK;
+            default:
+                return INTERACTIVE;
+        }
+    }
+    
+    private static Request poll(int lane) {
+        Request request = lanes.get(lane).poll();
+        if(request != null) {
+            waiting.decrementAndGet(lane);
+            if(request.worker != null) {
+                waitingByWorker.computeIfPresent(request.worker, (worker, queued) -> queued > 1 ? queued - 1 : null);
+            }
+        }
+        
+        return request;
+    }
+    
+    private static int indexOf(byte[] bytes, int from) {
+        for(int i = from; i < bytes.length; i++) {
+            if(bytes[i] == '\n') {
+                return i;
+            }
+        }
+        
+        return -1;
+    }
+    
+    private static int parseCode(byte[] bytes, int from) {
+        // Anything that isn't a small number is a bad request, which can wait with the interactive requests
+        int code = 0;
+        int i = from;
+        for(; i < bytes.length && bytes[i] != '\n'; i++) {
+            if(bytes[i] < '0' || bytes[i] > '9' || i - from >= 9) {
+                return -1;
+            }
+            code = code * 10 + (bytes[i] - '0');
+        }
+        
+        return i > from ? code : -1;
+    }
+}
@@ -1,16 +1,21 @@
 package main.server;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -41,12 +46,31 @@ public class Requestor {
      */
     public static final int CHANGE_CHANGED_PICTURE = 4;
     
+    /**
+     * A user joined or left a chat, only sent to members of the chat
+     */
+    public static final int CHANGE_MEMBERS_CHANGED = 5;
+    
+    // Kinds of typing and read events, these are only kept while they are new
+    /**
+     * A user started or stopped typing, the value is 1 when they started and 0 when they stopped
+     */
+    public static final int EVENT_TYPING = 0;
+    
+    /**
+     * A user read a conversation, the value is the sequence number of the newest message they read
+     */
+    public static final int EVENT_READ = 1;
+    
     // All request codes received from clients so we know what they want us to do
     // These also all return the result code for the Requester
     /**
-     * Requests to log in to the server
+     * Requests to log in to the server.
+     * Messages sent to the user while they were offline are given by {@code REQUEST_NEW_MESSAGE} after logging in.
+     * The token can be given to {@code REQUEST_RESUME} to get the session back after reconnecting.
+     * Giving a compression of "deflate" has large replies compressed, see {@code Compression}.
      * 
-     * (Sting username, String nickname) -> void
+     * (Sting username, String nickname, Optional(String compression)) -> String token
      */
     public static final int REQUEST_LOGIN = 0;
     
@@ -107,7 +131,8 @@ public class Requestor {
     public static final int REQUEST_USER_NICKNAME = 7;
     
     /**
-     * Gets a new user update or nothing if there aren't any
+     * Gets a new user update or nothing if there aren't any.
+     * A client that missed too many updates gets {@code RESULT_ROSTER_RESET} with every online user instead.
      * 
      * Must be logged in to use this request
      * () -> Optional(User, int[] updates (separated by commas))
@@ -118,15 +143,21 @@ public class Requestor {
      * Gets a new message or nothing if there aren't any
      * 
      * Must be logged in to use this request
-     * () -> String fromUser, boolean chooseNextArg, (int chatID or String username), String message, String utcTime
+     * () -> String fromUser, boolean chooseNextArg, (int chatID or String username), String message, String utcTime, long sequence, long timestamp
      */
     public static final int REQUEST_NEW_MESSAGE = 9;
     
     /**
-     * Sends a message to a user
+     * Sends a message to a user.
+     * The server gives each message a sequence number for its conversation and a timestamp
+     * in milliseconds since the epoch. The utcTime argument is optional and ignored.
+     * Users that are offline but have logged in before are given the message when they log back in.
+     * In a cluster, a message handled by another node is given a sequence number of -1.
+     * A client can give each message an ID of up to 64 characters, so that resending it after a timeout
+     * returns the first reply instead of sending it again. The last {@code User.SENT_REPLIES} IDs are kept.
      * 
      * Must be logged in to use this request
-     * (boolean chooseNextArg, (int chatID or String username), String message, String utcTime) -> void
+     * (boolean chooseNextArg, (int chatID or String username), String message, Optional(String utcTime), Optional(String clientMessageID)) -> long sequence, long timestamp
      */
     public static final int REQUEST_SEND_MESSAGE = 10;
     
@@ -155,7 +186,8 @@ public class Requestor {
     public static final int REQUEST_SET_NICKNAME = 13;
     
     /**
-     * Gets a user's profile picture
+     * Gets a user's profile picture.
+     * Large pictures should be fetched with {@code REQUEST_USER_PICTURE_HASH} and {@code REQUEST_BLOB_CHUNK} instead.
      * 
      * Must be logged in to use this request
      * (String username) -> boolean hasPicture, Optional(Base64 image)
@@ -163,7 +195,9 @@ public class Requestor {
     public static final int REQUEST_USER_PICTURE = 14;
     
     /**
-     * Sets the user's profile picture
+     * Sets the user's profile picture.
+     * Large pictures should be sent with {@code REQUEST_UPLOAD_PICTURE} instead.
+     * Pictures are converted in the background, so this is meant to be called until it stops returning pending.
      * 
      * Must be logged in to use this request
      * (boolean hasImage, Base64 image) -> void
@@ -178,6 +212,126 @@ public class Requestor {
      */
     public static final int REQUEST_CREATE_CHAT_ROOM = 16;
     
+    /**
+     * Gets a page of messages sent to a chat before a cursor, oldest first.
+     * The cursor is a sequence number, or a time in milliseconds since the epoch starting with '@'.
+     * A cursor of -1 gets the newest messages.
+     * 
+     * Must be logged in to use this request
+     * (int chatID, String before, int limit) -> int messages, (long sequence, String fromUser, String message, String utcTime, long timestamp)[]
+     */
+    public static final int REQUEST_CHAT_HISTORY = 17;
+    
+    /**
+     * Takes over the session of a user that was kicked, or that logged in with a different requester.
+     * Everything queued for the user is kept, so the client only has to take its updates
+     * instead of loading all users and chats again. The old token can't be used again.
+     * The compression works the same as for {@code REQUEST_LOGIN}.
+     * 
+     * (String token, Optional(String compression)) -> String token, String username, String nickname
+     */
+    public static final int REQUEST_RESUME = 18;
+    
+    /**
+     * Gets the hash and size of a user's profile picture, so clients can fetch it in chunks
+     * and skip pictures they already have
+     * 
+     * Must be logged in to use this request
+     * (String username) -> boolean hasPicture, Optional(String hash, int size)
+     */
+    public static final int REQUEST_USER_PICTURE_HASH = 19;
+    
+    /**
+     * Gets up to {@code BlobStore.CHUNK_SIZE} bytes of a blob, such as a profile picture.
+     * The bytes are sent in a second frame after the reply.
+     * Chunks that aren't in memory are read in the background, so this is meant to be called until it stops returning pending.
+     * 
+     * Must be logged in to use this request
+     * (String hash, int offset) -> int size, int length
+     */
+    public static final int REQUEST_BLOB_CHUNK = 20;
+    
+    /**
+     * Starts uploading a new profile picture in any format ImageIO can read,
+     * replacing any upload that wasn't finished
+     * 
+     * Must be logged in to use this request
+     * (int size) -> int chunkSize
+     */
+    public static final int REQUEST_UPLOAD_PICTURE = 21;
+    
+    /**
+     * Sends the next chunk of a picture upload, in a second frame after the request.
+     * Chunks must be sent in order and be at most chunkSize bytes.
+     * 
+     * Must be logged in to use this request
+     * (int offset) -> int received
+     */
+    public static final int REQUEST_UPLOAD_PICTURE_CHUNK = 22;
+    
+    /**
+     * Finishes a picture upload once all chunks were sent, and sets it as the user's profile picture.
+     * Pictures are converted in the background, so this is meant to be called until it stops returning pending.
+     * 
+     * Must be logged in to use this request
+     * () -> String hash
+     */
+    public static final int REQUEST_FINISH_PICTURE_UPLOAD = 23;
+    
+    /**
+     * Joins a chat, so the user is sent its messages and can see its history
+     * 
+     * Must be logged in to use this request
+     * (int chatID) -> void
+     */
+    public static final int REQUEST_JOIN_CHAT = 24;
+    
+    /**
+     * Leaves a chat, so the user is no longer sent its messages
+     * 
+     * Must be logged in to use this request
+     * (int chatID) -> void
+     */
+    public static final int REQUEST_LEAVE_CHAT = 25;
+    
+    /**
+     * Gets the usernames of the members of a chat
+     * 
+     * Must be logged in to use this request
+     * (int chatID) -> int members, String[] usernames
+     */
+    public static final int REQUEST_CHAT_MEMBERS = 26;
+    
+    /**
+     * Searches for messages with all the words in a query, newest first. The chat ID can be -1 to search
+     * every chat the user is a member of. An empty sender matches anyone, and times of -1 aren't limited.
+     * The text of a result can be read with {@code REQUEST_CHAT_HISTORY}, using a cursor of its sequence number + 1.
+     * Searches run in the background, so this is meant to be called until it stops returning pending.
+     * 
+     * Must be logged in to use this request
+     * (int chatID, String query, String fromUser, long after, long before, int limit) -> int hits, (int chatID, long sequence, String fromUser, long timestamp)[]
+     */
+    public static final int REQUEST_SEARCH = 27;
+    
+    /**
+     * Sends a typing or read event to a chat or user. Events are not kept for offline users,
+     * and a newer event of the same kind from the same user replaces one that wasn't taken yet.
+     * 
+     * Must be logged in to use this request
+     * (boolean chooseNextArg, (int chatID or String username), int kind, long value) -> void
+     */
+    public static final int REQUEST_SEND_EVENT = 28;
+    
+    /**
+     * Takes every typing and read event sent to the user in the last few seconds, oldest first.
+     * The chat ID is -1 for events sent straight to the user.
+     * This is meant to be called every client main loop
+     * 
+     * Must be logged in to use this request
+     * () -> int events, (String fromUser, boolean isDirect, int chatID, int kind, long value, long timestamp)[]
+     */
+    public static final int REQUEST_EVENTS = 29;
+    
     
     // Result codes tell the client what happened with the request
     /**
@@ -230,14 +384,78 @@ public class Requestor {
      */
     public static final int RESULT_FAILURE_UNKNOWN = -9;
     
+    /**
+     * The requested history is being loaded, ask again shortly
+     */
+    public static final int RESULT_HISTORY_PENDING = -10;
+    
+    /**
+     * Too much was queued for the user, so they were logged out.
+     * The client should log in again and reload all users and chats
+     */
+    public static final int RESULT_RESYNC_REQUIRED = -11;
+    
+    /**
+     * Requests are being made too quickly.
+     * The reply also has the number of milliseconds to wait before trying again
+     */
+    public static final int RESULT_RATE_LIMITED = -12;
+    
+    /**
+     * The session token is unknown or has expired, so the client has to log in again
+     */
+    public static final int RESULT_UNKNOWN_SESSION = -13;
+    
+    /**
+     * The client missed too many user updates, so the reply has every online user instead.
+     * The reply is followed by the number of users, then the username and nickname of each
+     */
+    public static final int RESULT_ROSTER_RESET = -14;
+    
+    /**
+     * The user has to join the chat first
+     */
+    public static final int RESULT_NOT_A_MEMBER = -15;
+    
+    /**
+     * The search hasn't finished yet, ask again shortly
+     */
+    public static final int RESULT_SEARCH_PENDING = -16;
+    
+    /**
+     * The uploaded picture is still being converted, ask again shortly
+     */
+    public static final int RESULT_PICTURE_PENDING = -17;
+    
+    /**
+     * The chunk is being read from disk, ask again shortly
+     */
+    public static final int RESULT_BLOB_PENDING = -18;
+    
     /**
      * Timeout before kicking requester.
      * This timer is reset every client main loop so this should be a fair time
      */
     public static final int TIMEOUT = 30000;
     
+    /**
+     * Milliseconds a kicked user is kept online so their client can resume the session, or 0 to log them out right away.
+     * This can be set with the server.resumeGrace system property.
+     */
+    public static final long RESUME_GRACE = Long.getLong("server.resumeGrace", 60000);
+    
     private static final Set<Requestor> requestors = new HashSet<>();
     
+    // Decoding a large picture takes a while, so it is done on its own thread, one picture at a time
+    private static final ExecutorService pictures = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "picture-convert");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Users by session token, only used on the main thread
+    private static final Map<String, User> sessions = new HashMap<>();
+    
     /**
      * Finds an already existing requester with same name or creates a new one
      * 
@@ -284,21 +502,110 @@ public class Requestor {
     
     private ScheduledExecutorService timer;
     
+    private ScheduledFuture<?> kick;
+    
+    // Only read and written on the main thread
+    private long kickTime;
+    private User suspended;
+    private boolean compress = false;
+    
+    // The picture being uploaded, and the frame to send after the current reply
+    private byte[] upload;
+    private int uploaded;
+    private byte[] replyPayload;
+    
+    // The finished upload being converted and stored, and the user it is for
+    private Future<String> picture;
+    private User pictureUser;
+    
+    // The blob chunk being read, and the hash and offset it was asked for with
+    private Future<byte[]> chunk;
+    private String chunkKey;
+    
+    // The search that is running, and the arguments it was started with
+    private Future<List<SearchIndex.Hit>> search;
+    private String searchKey;
+    
+    private final RateLimiter limiter = new RateLimiter();
+    
     private Requestor(String worker) {
         this.worker = worker;
         timer = Executors.newSingleThreadScheduledExecutor();
-        timer.schedule(this::kickUser, TIMEOUT, TimeUnit.MILLISECONDS);
+        scheduleKick();
+    }
+    
+    private void scheduleKick() {
+        // The timer thread only asks the main thread to kick, so server state is never changed on the timer thread
+        kickTime = System.currentTimeMillis() + TIMEOUT;
+        kick = timer.schedule(() -> Main.post(this::kickUser), TIMEOUT, TimeUnit.MILLISECONDS);
     }
     
     private void kickUser() {
+        // A keep alive may have been handled after the timer went off, but before the main thread got to this
+        if(System.currentTimeMillis() < kickTime) {
+            return;
+        }
+        
+        // A request that arrived in time but is still waiting in its lane counts, check again once it has been handled
+        if(RequestLanes.hasWaiting(worker)) {
+            kick = timer.schedule(() -> Main.post(this::kickUser), 1000, TimeUnit.MILLISECONDS);
+            return;
+        }
+        
         // Log user out if not already, and remove requester information about user
         // This means a requester won't hang around until the server closes
         requestors.remove(this);
+        Flight.kick(user != null ? user.username : null, user != null && RESUME_GRACE > 0);
         
-        if(user != null) {
-            // Kick user
-            Main.users.remove(user);
-            Main.distributeUserUpdate(user, CHANGE_DISCONNECTED);
+        if(user != null && RESUME_GRACE > 0) {
+            // Keep the user online for a while so the client can resume, delayed tasks still run after shutdown
+            suspended = user;
+            user = null;
+            timer.schedule(() -> Main.post(this::expireSession), RESUME_GRACE, TimeUnit.MILLISECONDS);
+        }
+        else if(user != null) {
+            logOut(user);
+            user = null;
+        }
+        
+        timer.shutdown();
+    }
+    
+    private void expireSession() {
+        // Nothing to do if the session was resumed by another requester or already ended
+        if(suspended != null && suspended.requestor == this && Main.hasUser(suspended.username)
+           && Main.getUser(suspended.username) == suspended) {
+            logOut(suspended);
+        }
+        
+        suspended = null;
+    }
+    
+    private static void logOut(User user) {
+        // Kick user, keeping their messages for when they log back in
+        Main.removeUser(user);
+        user.storeMessages();
+        Main.distributeUserUpdate(user, CHANGE_DISCONNECTED);
+        endSession(user);
+    }
+    
+    private static void startSession(User user) {
+        // In a cluster the token starts with the node that gave it out, so ShardLauncher can send a resume back to it
+        String token = UUID.randomUUID().toString();
+        user.sessionToken = Cluster.ENABLED ? Cluster.SELF + "." + token : token;
+        sessions.put(user.sessionToken, user);
+    }
+    
+    /**
+     * Stops a user's session token from being used again.
+     * This must be called whenever a user logs out or is logged out.
+     * 
+     * @param user The user that logged out
+     */
+    public static void endSession(User user) {
+        if(user.sessionToken != null) {
+            sessions.remove(user.sessionToken);
+            user.sessionToken = null;
         }
     }
     
@@ -311,11 +618,42 @@ public class Requestor {
         return user != null;
     }
     
+    /**
+     * Gets the username of the user the requester is logged in as
+     * 
+     * @return The username, or {@code null} if not logged in
+     */
+    public String getUsername() {
+        return user != null ? user.username : null;
+    }
+    
     /**
      * Removes the user from this requester
      */
     public void removeUser() {
         user = null;
+        suspended = null;
+    }
+    
+    /**
+     * Turns a reply into the bytes to send, compressing it if the client asked for that
+     * 
+     * @param reply The reply from {@code handleRequest}
+     * @return The bytes to send back to the requester
+     */
+    public byte[] encodeReply(String reply) {
+        return compress ? Compression.compress(reply.getBytes()) : reply.getBytes();
+    }
+    
+    /**
+     * Gets the frame to send after the reply to the last request, if there is one
+     * 
+     * @return The frame, or {@code null} if the reply is a single frame
+     */
+    public byte[] takeReplyPayload() {
+        byte[] payload = replyPayload;
+        replyPayload = null;
+        return payload;
     }
     
     /**
@@ -324,10 +662,19 @@ public class Requestor {
      * 
      * @param requestLine The request type as an unparsed String
      * @param arguments The other arguments sent by the client
+     * @param payload The frame sent after the request, or {@code null} if there wasn't one
      * 
      * @return The String to reply with
      */
-    public String handleRequest(String requestLine, String[] arguments) {
+    public String handleRequest(String requestLine, String[] arguments, byte[] payload) {
+        Object event = Flight.beginRequest();
+        String reply = handle(requestLine, arguments, payload);
+        Flight.endRequest(event, requestLine, reply);
+        
+        return reply;
+    }
+    
+    private String handle(String requestLine, String[] arguments, byte[] payload) {
         int requestId = -1;
         
         // Find out what user is looking for
@@ -338,15 +685,37 @@ public class Requestor {
             return String.valueOf(RESULT_BAD_REQUEST);
         }
         
+        // Refuse requests that come too quickly, keep alives don't count so a busy client isn't kicked
+        long retryAfter = limiter.take(requestId, requestId != REQUEST_KEEP_ALIVE);
+        if(retryAfter > 0) {
+            Metrics.requestsRateLimited.incrementAndGet();
+            return String.valueOf(RESULT_RATE_LIMITED) + "\n"
+                 + retryAfter;
+        }
+        
+        // Log out users that fell too far behind, now that it is safe to change the user list
+        if(user != null && user.isResyncRequired()) {
+            Main.distributeUserUpdate(user, CHANGE_DISCONNECTED);
+            Main.removeUser(user);
+            endSession(user);
+            user = null;
+            
+            return String.valueOf(RESULT_RESYNC_REQUIRED);
+        }
+        
         // Perform correct task and return correct response based on the type of request
         switch(requestId) {
             // Make a user with a username and nickname to add to the server
             // This also allows most other tasks to be used that could before
             case REQUEST_LOGIN: {
-                if(arguments.length != 2) {
+                if(arguments.length != 2 && arguments.length != 3) {
                     return String.valueOf(RESULT_BAD_REQUEST);
                 }
-                if(Main.hasUser(arguments[0])) {
+                // A kicked user waiting to be resumed gives up their username to a new login
+                if(Main.hasUser(arguments[0]) && Main.getUser(arguments[0]).requestor.suspended == Main.getUser(arguments[0])) {
+                    Main.getUser(arguments[0]).requestor.expireSession();
+                }
+                if(Main.hasUser(arguments[0]) || Cluster.hasRemoteUser(arguments[0])) {
                     return String.valueOf(RESULT_USERNAME_TAKEN);
                 }
                 if(arguments[0].length() > 40 || arguments[1].length() > 40) {
@@ -355,10 +724,50 @@ public class Requestor {
                 else {
                     // Create new user 
                     user = new User(this, arguments[0], arguments[1]);
+                    user.loadMailbox();
                     Main.distributeUserUpdate(user, CHANGE_CONNECTED);
-                    Main.users.add(user);
-                    return String.valueOf(RESULT_SUCCESS);
+                    Main.addUser(user);
+                    startSession(user);
+                    compress = arguments.length == 3 && arguments[2].equalsIgnoreCase(Compression.DEFLATE);
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + user.sessionToken;
+                }
+            }
+            // Takes over a session from a kicked or old requester, keeping everything queued for the user
+            case REQUEST_RESUME: {
+                if(arguments.length != 1 && arguments.length != 2) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                if(checkLoggedIn()) {
+                    return String.valueOf(RESULT_ALREADY_LOGGED_IN);
+                }
+                
+                User resumed = sessions.get(arguments[0]);
+                if(resumed == null) {
+                    return String.valueOf(RESULT_UNKNOWN_SESSION);
                 }
+                
+                // Take the user from the requester that had it, which could still be waiting to be kicked
+                Requestor old = resumed.requestor;
+                if(old.user == resumed) {
+                    old.user = null;
+                }
+                if(old.suspended == resumed) {
+                    old.suspended = null;
+                }
+                
+                resumed.requestor = this;
+                user = resumed;
+                
+                // Give out a new token so the old one can't be used to take the session again
+                endSession(user);
+                startSession(user);
+                compress = arguments.length == 2 && arguments[1].equalsIgnoreCase(Compression.DEFLATE);
+                
+                return String.valueOf(RESULT_SUCCESS) + "\n"
+                     + user.sessionToken + "\n"
+                     + user.username + "\n"
+                     + user.nickname;
             }
             // Returns the number of chats so that they can be looped through
             case REQUEST_CHATS_ONLINE: {
@@ -440,7 +849,7 @@ public class Requestor {
                 }
                 else {
                     return String.valueOf(RESULT_SUCCESS) + "\n"
-                         + String.valueOf(Main.users.size()); 
+                         + String.valueOf(Main.users.size() + Cluster.remoteUserCount());
                 }
             }
             // Requests the username of a user by the index
@@ -454,8 +863,11 @@ public class Requestor {
                 int idx = -1;
                 try {
                     idx = Integer.parseInt(arguments[0]);
+                    
+                    // Users on other nodes come after the users on this node
+                    User user = idx < Main.users.size() ? Main.users.get(idx) : Cluster.getRemoteUser(idx - Main.users.size());
                     return String.valueOf(RESULT_SUCCESS) + "\n"
-                         + String.valueOf(Main.users.get(idx).username);
+                         + String.valueOf(user.username);
                 }
                 catch(NumberFormatException | IndexOutOfBoundsException e) {
                     return String.valueOf(RESULT_BAD_REQUEST);
@@ -471,6 +883,11 @@ public class Requestor {
                 }
                 
                 try {
+                    if(Cluster.hasRemoteUser(arguments[0])) {
+                        return String.valueOf(RESULT_SUCCESS) + "\n"
+                             + String.valueOf(Cluster.getRemoteUser(arguments[0]).nickname);
+                    }
+                    
                     return String.valueOf(RESULT_SUCCESS) + "\n"
                          + String.valueOf(Main.getUser(arguments[0]).nickname);
                 }
@@ -488,17 +905,32 @@ public class Requestor {
                     return String.valueOf(RESULT_NOT_LOGGED_IN);
                 }
                 
-                try {
-                    Entry<User, List<Integer>> updates = user.getAndRemoveUserUpdate();
-                    String updateLine = "";
-                    for(int update : updates.getValue()) {
-                        updateLine += update + ",";
+                // Replaying more than the stream keeps would cost more than sending everyone
+                if(!Main.presence.isAvailable(user.presenceCursor)) {
+                    user.presenceCursor = Main.presence.getEpoch();
+                    Metrics.rosterResets.incrementAndGet();
+                    
+                    StringBuilder reply = new StringBuilder();
+                    reply.append(RESULT_ROSTER_RESET).append('\n').append(Main.users.size() + Cluster.remoteUserCount());
+                    for(User online : Main.users) {
+                        reply.append('\n').append(online.username).append('\n').append(online.nickname);
                     }
-                    updateLine = updateLine.substring(0, updateLine.length() - 1);
+                    for(int i = 0; i < Cluster.remoteUserCount(); i++) {
+                        User online = Cluster.getRemoteUser(i);
+                        reply.append('\n').append(online.username).append('\n').append(online.nickname);
+                    }
+                    
+                    return reply.toString();
+                }
+                
+                try {
+                    User updated = Main.presence.getUser(user.presenceCursor);
+                    int update = Main.presence.getUpdate(user.presenceCursor);
+                    user.presenceCursor++;
                     
                     return String.valueOf(RESULT_SUCCESS) + "\n"
-                         + updates.getKey().username + "\n"
-                         + updateLine;
+                         + updated.username + "\n"
+                         + update;
                 }
                 catch(NoSuchElementException e) {
                     return String.valueOf(RESULT_SUCCESS);
@@ -514,24 +946,32 @@ public class Requestor {
                 
                 try {
                     Message message = user.getAndRemoveMessage();
+                    String reply;
                     
-                    if(message.toChat.isPresent()) {
-                        return String.valueOf(RESULT_SUCCESS) + "\n"
-                             + message.from.username + "\n"
-                             + String.valueOf(false) + "\n"
-                             + message.toChat.get().id + "\n"
-                             + message.message + "\n"
-                             + message.date;
+                    if(message.isToChat()) {
+                        reply = String.valueOf(RESULT_SUCCESS) + "\n"
+                              + message.getFrom() + "\n"
+                              + String.valueOf(false) + "\n"
+                              + message.getChatId() + "\n"
+                              + message.getMessage() + "\n"
+                              + Message.formatDate(message.timestamp) + "\n"
+                              + message.sequence + "\n"
+                              + message.timestamp;
                     }
-                    else if(message.toUser.isPresent()) {
-                        return String.valueOf(RESULT_SUCCESS) + "\n"
-                             + message.from.username + "\n"
-                             + String.valueOf(true) + "\n"
-                             + message.toUser.get().username + "\n"
-                             + message.message + "\n"
-                             + message.date;
+                    else {
+                        reply = String.valueOf(RESULT_SUCCESS) + "\n"
+                              + message.getFrom() + "\n"
+                              + String.valueOf(true) + "\n"
+                              + message.getToUser() + "\n"
+                              + message.getMessage() + "\n"
+                              + Message.formatDate(message.timestamp) + "\n"
+                              + message.sequence + "\n"
+                              + message.timestamp;
                     }
-
+                    
+                    // The contents were copied into the reply, so the queue's hold on them can go
+                    message.release();
+                    return reply;
                 }
                 catch(IndexOutOfBoundsException e) {
                     return String.valueOf(RESULT_SUCCESS);
@@ -542,62 +982,34 @@ public class Requestor {
                 if(!checkLoggedIn()) {
                     return String.valueOf(RESULT_NOT_LOGGED_IN);
                 }
-                if(arguments.length != 4) {
+                // Older clients still send their own time, which is ignored
+                if(arguments.length < 3 || arguments.length > 5) {
                     return String.valueOf(RESULT_BAD_REQUEST);
                 }
                 if(arguments[2].length() > 1000) {
                     return String.valueOf(RESULT_TEXT_TOO_LONG);
                 }
                 
-                Message message = null;
-                
-                // Chat
-                if(!Boolean.parseBoolean(arguments[0])) {
-                    int chatId = -1;
-                    try {
-                        chatId = Integer.parseInt(arguments[1]);
-                    }
-                    catch(NumberFormatException e) {
-                        return String.valueOf(RESULT_BAD_REQUEST);
+                // A client that timed out resends with the same ID, which must not send the message twice
+                String clientId = arguments.length == 5 && !arguments[4].isEmpty() ? arguments[4] : null;
+                if(clientId != null) {
+                    if(clientId.length() > 64) {
+                        return String.valueOf(RESULT_TEXT_TOO_LONG);
                     }
                     
-                    try {
-                        ZonedDateTime.parse(arguments[3]);
-                    }
-                    catch(DateTimeParseException e) {
-                        return String.valueOf(RESULT_BAD_REQUEST);
+                    String previous = user.sentReplies.get(clientId);
+                    if(previous != null) {
+                        Metrics.duplicateSends.incrementAndGet();
+                        return previous;
                     }
-                    
-                    message = new Message(this.user, Main.getChat(chatId), arguments[2], arguments[3]);
-                    
-                    Main.distributeNewMessage(message);
                 }
-                // User
-                else {
-                    String username = arguments[1];
-                    
-                    try {
-                        ZonedDateTime.parse(arguments[3]);
-                    }
-                    catch(DateTimeParseException e) {
-                        return String.valueOf(RESULT_BAD_REQUEST);
-                    }
-                    
-                    User user = null;
-                    
-                    try {
-                         user = Main.getUser(username);
-                    }
-                    catch(NoSuchElementException e) {
-                        return String.valueOf(RESULT_UNKNOWN_USERNAME);
-                    }
-                    
-                    message = new Message(this.user, user, arguments[2], arguments[3]);
-                    
-                    Main.distributeNewMessage(message);
+                
+                String reply = sendMessage(arguments);
+                if(clientId != null && reply.startsWith(String.valueOf(RESULT_SUCCESS) + "\n")) {
+                    user.sentReplies.put(clientId, reply);
                 }
                 
-                return String.valueOf(RESULT_SUCCESS);
+                return reply;
             }
             // Changes the nickname of a user
             case REQUEST_SET_NICKNAME: {
@@ -609,6 +1021,7 @@ public class Requestor {
                 }
                 
                 user.nickname = arguments[0];
+                user.profile.nickname = arguments[0];
                 Main.distributeUserUpdate(user, CHANGE_CHANGED_NICKNAME);
             }
             // Resets the timeout timer
@@ -618,9 +1031,8 @@ public class Requestor {
                     return String.valueOf(RESULT_NOT_LOGGED_IN);
                 }
                 
-                timer.shutdownNow();
-                timer = Executors.newSingleThreadScheduledExecutor();
-                timer.schedule(this::kickUser, TIMEOUT, TimeUnit.MILLISECONDS);
+                kick.cancel(false);
+                scheduleKick();
                 return String.valueOf(RESULT_SUCCESS);
             }
             // Logs the user out of the server
@@ -630,7 +1042,9 @@ public class Requestor {
                 }
                 
                 Main.distributeUserUpdate(user, CHANGE_DISCONNECTED);
-                Main.users.remove(user);
+                Main.removeUser(user);
+                user.storeMessages();
+                endSession(user);
                 user = null;
                 
                 return String.valueOf(RESULT_SUCCESS);
@@ -647,6 +1061,12 @@ public class Requestor {
                 
                 User user = null;
                 
+                // Pictures aren't shared between nodes, so users on other nodes have none
+                if(Cluster.hasRemoteUser(arguments[0])) {
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + String.valueOf(false);
+                }
+                
                 try {
                     user = Main.getUser(arguments[0]);
                 }
@@ -654,19 +1074,19 @@ public class Requestor {
                     return String.valueOf(RESULT_UNKNOWN_USERNAME);
                 }
                 
-                try {
-                    if(user.image != null) {
+                if(user.profile.picture != null) {
+                    try {
                         return String.valueOf(RESULT_SUCCESS) + "\n"
                              + String.valueOf(true) + "\n"
-                             + User.encodeToString(user.image);
+                             + User.encodeToString(BlobStore.get(user.profile.picture));
                     }
-                    else {
-                        return String.valueOf(RESULT_SUCCESS) + "\n"
-                             + String.valueOf(false);
+                    catch(IOException e) {
+                        return String.valueOf(RESULT_FAILURE_UNKNOWN);
                     }
                 }
-                catch(IOException e) {
-                    return String.valueOf(RESULT_FAILURE_UNKNOWN);
+                else {
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + String.valueOf(false);
                 }
             }
             // Sets the user's profile picture with a Base64 string that is decoded into an image
@@ -683,33 +1103,396 @@ public class Requestor {
                 boolean hasImage = Boolean.parseBoolean(arguments[0]);
                 
                 if(hasImage) {
-                    try {
-                        BufferedImage image = User.decodeImage(arguments[1]);
-                        user.image = image;
-                        Main.distributeUserUpdate(user, CHANGE_CHANGED_PICTURE);
-                        return String.valueOf(RESULT_SUCCESS);
-                    }
-                    catch(IOException e) {
-                        return String.valueOf(RESULT_BAD_REQUEST);
+                    // Picking up a picture that was already being converted
+                    if(picture != null && pictureUser == user) {
+                        return takePicture(false);
                     }
+                    
+                    String image = arguments[1];
+                    picture = pictures.submit(() -> BlobStore.write(User.decodePicture(image)));
+                    pictureUser = user;
+                    return String.valueOf(RESULT_PICTURE_PENDING);
                 }
                 
-                try {
-                    if(user.image != null) {
+                if(user.profile.picture != null) {
+                    try {
                         return String.valueOf(RESULT_SUCCESS) + "\n"
                              + String.valueOf(true) + "\n"
-                             + User.encodeToString(user.image);
+                             + User.encodeToString(BlobStore.get(user.profile.picture));
                     }
-                    else {
-                        return String.valueOf(RESULT_SUCCESS) + "\n"
-                             + String.valueOf(false);
+                    catch(IOException e) {
+                        return String.valueOf(RESULT_FAILURE_UNKNOWN);
                     }
                 }
-                catch(IOException e) {
-                    return String.valueOf(RESULT_FAILURE_UNKNOWN);
+                else {
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + String.valueOf(false);
                 }
             }
-            // Creates a chatroom with a given name
+            // Gets the hash of a user's picture so it can be downloaded in chunks
+            case REQUEST_USER_PICTURE_HASH: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 1) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                // Pictures aren't shared between nodes, so users on other nodes have none
+                if(Cluster.hasRemoteUser(arguments[0])) {
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + String.valueOf(false);
+                }
+                if(!Main.hasUser(arguments[0])) {
+                    return String.valueOf(RESULT_UNKNOWN_USERNAME);
+                }
+                
+                String hash = Main.getUser(arguments[0]).profile.picture;
+                if(hash == null) {
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + String.valueOf(false);
+                }
+                
+                try {
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + String.valueOf(true) + "\n"
+                         + hash + "\n"
+                         + BlobStore.size(hash);
+                }
+                catch(IOException e) {
+                    return String.valueOf(RESULT_FAILURE_UNKNOWN);
+                }
+            }
+            // Sends one chunk of a blob, so a large picture doesn't hold up everyone else
+            case REQUEST_BLOB_CHUNK: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 2) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                try {
+                    long size = BlobStore.size(arguments[0]);
+                    
+                    // Starting a read unless this chunk is already being read
+                    String key = arguments[0] + "\n" + arguments[1];
+                    if(chunk == null || !key.equals(chunkKey)) {
+                        long offset = Long.parseLong(arguments[1]);
+                        if(offset < 0 || offset > size) {
+                            return String.valueOf(RESULT_BAD_REQUEST);
+                        }
+                        
+                        chunk = BlobStore.readChunk(arguments[0], offset);
+                        chunkKey = key;
+                    }
+                    if(!chunk.isDone()) {
+                        return String.valueOf(RESULT_BLOB_PENDING);
+                    }
+                    
+                    try {
+                        replyPayload = chunk.get();
+                    }
+                    catch(InterruptedException | ExecutionException e) {
+                        return String.valueOf(RESULT_FAILURE_UNKNOWN);
+                    }
+                    finally {
+                        chunk = null;
+                        chunkKey = null;
+                    }
+                    
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + size + "\n"
+                         + replyPayload.length;
+                }
+                catch(NumberFormatException e) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                catch(IOException e) {
+                    return String.valueOf(RESULT_FAILURE_UNKNOWN);
+                }
+            }
+            // Starts a picture upload, which is then sent in chunks
+            case REQUEST_UPLOAD_PICTURE: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 1) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                try {
+                    int size = Integer.parseInt(arguments[0]);
+                    if(size <= 0) {
+                        return String.valueOf(RESULT_BAD_REQUEST);
+                    }
+                    if(size > BlobStore.MAX_SIZE) {
+                        return String.valueOf(RESULT_TEXT_TOO_LONG);
+                    }
+                    
+                    upload = new byte[size];
+                    uploaded = 0;
+                    picture = null;
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + BlobStore.CHUNK_SIZE;
+                }
+                catch(NumberFormatException e) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+            }
+            // Adds the next chunk to a picture upload
+            case REQUEST_UPLOAD_PICTURE_CHUNK: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 1 || upload == null || payload == null || payload.length > BlobStore.CHUNK_SIZE) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                try {
+                    // Chunks have to come in order, so a repeated or skipped chunk is refused
+                    if(Integer.parseInt(arguments[0]) != uploaded || payload.length > upload.length - uploaded) {
+                        return String.valueOf(RESULT_BAD_REQUEST);
+                    }
+                    
+                    System.arraycopy(payload, 0, upload, uploaded, payload.length);
+                    uploaded += payload.length;
+                    return String.valueOf(RESULT_SUCCESS) + "\n"
+                         + uploaded;
+                }
+                catch(NumberFormatException e) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+            }
+            // Checks the uploaded picture and sets it as the user's picture
+            case REQUEST_FINISH_PICTURE_UPLOAD: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                
+                // Picking up a picture that was already being converted
+                if(picture != null && pictureUser == user) {
+                    return takePicture(true);
+                }
+                if(upload == null || uploaded != upload.length) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                byte[] data = upload;
+                upload = null;
+                picture = pictures.submit(() -> BlobStore.write(User.convertPicture(data)));
+                pictureUser = user;
+                return String.valueOf(RESULT_PICTURE_PENDING);
+            }
+            // Adds the user to a chat's members
+            case REQUEST_JOIN_CHAT:
+            // Removes the user from a chat's members
+            case REQUEST_LEAVE_CHAT: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 1) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                try {
+                    ChatRoom chat = Main.getChat(Integer.parseInt(arguments[0]));
+                    
+                    if(requestId == REQUEST_JOIN_CHAT) {
+                        Main.joinChat(chat, user.username);
+                    }
+                    else {
+                        Main.leaveChat(chat, user.username);
+                    }
+                    
+                    return String.valueOf(RESULT_SUCCESS);
+                }
+                catch(NumberFormatException e) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                catch(NoSuchElementException e) {
+                    return String.valueOf(RESULT_UNKNOWN_CHAT);
+                }
+            }
+            // Lists the members of a chat
+            case REQUEST_CHAT_MEMBERS: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 1) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                try {
+                    ChatRoom chat = Main.getChat(Integer.parseInt(arguments[0]));
+                    
+                    StringBuilder reply = new StringBuilder();
+                    reply.append(RESULT_SUCCESS).append('\n').append(chat.members.size());
+                    for(String member : chat.members) {
+                        reply.append('\n').append(member);
+                    }
+                    
+                    return reply.toString();
+                }
+                catch(NumberFormatException e) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                catch(NoSuchElementException e) {
+                    return String.valueOf(RESULT_UNKNOWN_CHAT);
+                }
+            }
+            // Sends a typing or read event, which is only kept until the next one or until it is stale
+            case REQUEST_SEND_EVENT: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 4) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                int kind;
+                long value;
+                try {
+                    kind = Integer.parseInt(arguments[2]);
+                    value = Long.parseLong(arguments[3]);
+                }
+                catch(NumberFormatException e) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                if(kind != EVENT_TYPING && kind != EVENT_READ) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                // Chat
+                if(!Boolean.parseBoolean(arguments[0])) {
+                    ChatRoom chat = null;
+                    try {
+                        chat = Main.getChat(Integer.parseInt(arguments[1]));
+                    }
+                    catch(NumberFormatException e) {
+                        return String.valueOf(RESULT_BAD_REQUEST);
+                    }
+                    catch(NoSuchElementException e) {
+                        return String.valueOf(RESULT_UNKNOWN_CHAT);
+                    }
+                    if(!chat.members.contains(user.username)) {
+                        return String.valueOf(RESULT_NOT_A_MEMBER);
+                    }
+                    
+                    Main.distributeEvent(user.username, chat.id, null, kind, value, System.currentTimeMillis());
+                }
+                // User
+                else {
+                    String username = arguments[1];
+                    if(!Main.hasUser(username) && !Cluster.hasRemoteUser(username) && !Main.profiles.containsKey(username)) {
+                        return String.valueOf(RESULT_UNKNOWN_USERNAME);
+                    }
+                    
+                    Main.distributeEvent(user.username, -1, username, kind, value, System.currentTimeMillis());
+                }
+                
+                return String.valueOf(RESULT_SUCCESS);
+            }
+            // Takes the typing and read events that are still new
+            case REQUEST_EVENTS: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                
+                EventSlots.Event[] events = user.events.take(System.currentTimeMillis());
+                
+                StringBuilder reply = new StringBuilder();
+                reply.append(RESULT_SUCCESS).append('\n').append(events.length);
+                for(EventSlots.Event event : events) {
+                    reply.append('\n').append(event.from)
+                         .append('\n').append(event.direct)
+                         .append('\n').append(event.chatId)
+                         .append('\n').append(event.kind)
+                         .append('\n').append(event.value)
+                         .append('\n').append(event.timestamp);
+                }
+                
+                return reply.toString();
+            }
+            // Searches chats for messages, the search runs in the background so this is meant to be called until it stops returning pending
+            case REQUEST_SEARCH: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 6) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                // Picking up a search that was already started
+                String key = String.join("\n", arguments);
+                if(search != null && key.equals(searchKey)) {
+                    if(!search.isDone()) {
+                        return String.valueOf(RESULT_SEARCH_PENDING);
+                    }
+                    
+                    List<SearchIndex.Hit> hits;
+                    try {
+                        hits = search.get();
+                    }
+                    catch(InterruptedException | ExecutionException e) {
+                        return String.valueOf(RESULT_FAILURE_UNKNOWN);
+                    }
+                    finally {
+                        search = null;
+                        searchKey = null;
+                    }
+                    
+                    StringBuilder reply = new StringBuilder();
+                    reply.append(RESULT_SUCCESS).append('\n').append(hits.size());
+                    for(SearchIndex.Hit hit : hits) {
+                        reply.append('\n').append(hit.chatId)
+                             .append('\n').append(hit.sequence)
+                             .append('\n').append(hit.from)
+                             .append('\n').append(hit.timestamp);
+                    }
+                    
+                    return reply.toString();
+                }
+                
+                List<SearchIndex> indexes = new ArrayList<>();
+                long after = -1;
+                long before = -1;
+                int limit = 0;
+                
+                try {
+                    int id = Integer.parseInt(arguments[0]);
+                    after = Long.parseLong(arguments[3]);
+                    before = Long.parseLong(arguments[4]);
+                    limit = Integer.parseInt(arguments[5]);
+                    
+                    // Only chats the user is a member of can be searched
+                    if(id < 0) {
+                        for(ChatRoom chat : Main.chats) {
+                            if(chat.members.contains(user.username)) {
+                                indexes.add(chat.search);
+                            }
+                        }
+                    }
+                    else {
+                        ChatRoom chat = Main.getChat(id);
+                        if(!chat.members.contains(user.username)) {
+                            return String.valueOf(RESULT_NOT_A_MEMBER);
+                        }
+                        indexes.add(chat.search);
+                    }
+                }
+                catch(NumberFormatException e) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                catch(NoSuchElementException e) {
+                    return String.valueOf(RESULT_UNKNOWN_CHAT);
+                }
+                
+                search = SearchIndex.search(indexes, arguments[1], arguments[2], after, before, limit);
+                searchKey = key;
+                return String.valueOf(RESULT_SEARCH_PENDING);
+            }
+            // Creates a chatroom with a given name
             case REQUEST_CREATE_CHAT_ROOM: {
                 if(!checkLoggedIn()) {
                     return String.valueOf(RESULT_NOT_LOGGED_IN);
@@ -718,19 +1501,169 @@ public class Requestor {
                     return String.valueOf(RESULT_BAD_REQUEST);
                 }
                 
-                int id = -1;
-                while(Main.hasChat(++id));
+                int id = Main.nextChatId();
                 
                 ChatRoom chat = new ChatRoom(id, arguments[0]);
                 Main.distributeChatUpdate(chat, CHANGE_CONNECTED);
-                Main.chats.add(chat);
+                Main.addChat(chat);
+                
+                // Whoever makes a chat is its first member
+                Main.joinChat(chat, user.username);
                 return String.valueOf(RESULT_SUCCESS) + "\n"
                      + String.valueOf(id);
             }
+            // Sends a page of old messages from a chat
+            // Pages not in memory are loaded in the background, so this is meant to be called until it stops returning pending
+            case REQUEST_CHAT_HISTORY: {
+                if(!checkLoggedIn()) {
+                    return String.valueOf(RESULT_NOT_LOGGED_IN);
+                }
+                if(arguments.length != 3) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                
+                ChatRoom chat = null;
+                long before = -1;
+                boolean byTime = arguments[1].startsWith("@");
+                int limit = 0;
+                
+                try {
+                    chat = Main.getChat(Integer.parseInt(arguments[0]));
+                    before = Long.parseLong(byTime ? arguments[1].substring(1) : arguments[1]);
+                    limit = Integer.parseInt(arguments[2]);
+                }
+                catch(NumberFormatException e) {
+                    return String.valueOf(RESULT_BAD_REQUEST);
+                }
+                catch(NoSuchElementException e) {
+                    return String.valueOf(RESULT_UNKNOWN_CHAT);
+                }
+                if(!chat.members.contains(user.username)) {
+                    return String.valueOf(RESULT_NOT_A_MEMBER);
+                }
+                
+                try {
+                    List<ChatHistory.Entry> page = chat.history.getPage(before, byTime, limit);
+                    if(page == null) {
+                        return String.valueOf(RESULT_HISTORY_PENDING);
+                    }
+                    
+                    StringBuilder reply = new StringBuilder();
+                    reply.append(RESULT_SUCCESS).append('\n').append(page.size());
+                    for(ChatHistory.Entry entry : page) {
+                        reply.append('\n').append(entry.sequence)
+                             .append('\n').append(entry.from)
+                             .append('\n').append(entry.message)
+                             .append('\n').append(Message.formatDate(entry.timestamp))
+                             .append('\n').append(entry.timestamp);
+                    }
+                    
+                    return reply.toString();
+                }
+                catch(IOException e) {
+                    return String.valueOf(RESULT_FAILURE_UNKNOWN);
+                }
+            }
             // This could only really be caused by an out of date server
             default: {
                 return String.valueOf(RESULT_FAILURE_UNKNOWN);
             }
         }
     }
+    
+    // Sets the picture that was being converted as the user's picture once it is done, returning the reply
+    private String takePicture(boolean withHash) {
+        if(!picture.isDone()) {
+            return String.valueOf(RESULT_PICTURE_PENDING);
+        }
+        
+        try {
+            user.profile.picture = picture.get();
+        }
+        catch(InterruptedException | ExecutionException e) {
+            // It wasn't an image, or couldn't be stored
+            return String.valueOf(RESULT_BAD_REQUEST);
+        }
+        finally {
+            picture = null;
+            pictureUser = null;
+        }
+        
+        Main.distributeUserUpdate(user, CHANGE_CHANGED_PICTURE);
+        if(!withHash) {
+            return String.valueOf(RESULT_SUCCESS);
+        }
+        
+        return String.valueOf(RESULT_SUCCESS) + "\n"
+             + user.profile.picture;
+    }
+    
+    // Sends a message that has already been checked, returning the reply
+    private String sendMessage(String[] arguments) {
+        Message message = null;
+        
+        // Chat
+        if(!Boolean.parseBoolean(arguments[0])) {
+            ChatRoom chat = null;
+            try {
+                chat = Main.getChat(Integer.parseInt(arguments[1]));
+            }
+            catch(NumberFormatException e) {
+                return String.valueOf(RESULT_BAD_REQUEST);
+            }
+            catch(NoSuchElementException e) {
+                return String.valueOf(RESULT_UNKNOWN_CHAT);
+            }
+            if(!chat.members.contains(this.user.username)) {
+                return String.valueOf(RESULT_NOT_A_MEMBER);
+            }
+            
+            // The node that owns the chat gives out the sequence number, so it isn't known yet
+            if(!Cluster.ownsChat(chat.id)) {
+                Cluster.forwardChatMessage(this.user, chat, arguments[2]);
+                return String.valueOf(RESULT_SUCCESS) + "\n"
+                     + "-1\n"
+                     + System.currentTimeMillis();
+            }
+            
+            long sequence = chat.sequence.next();
+            message = new Message(this.user, chat, arguments[2], sequence, chat.sequence.getTimestamp());
+            
+            Main.distributeNewMessage(message);
+        }
+        // User
+        else {
+            String username = arguments[1];
+            
+            User user = null;
+            
+            // Users that have logged in before can be sent messages while offline
+            if(Main.hasUser(username)) {
+                user = Main.getUser(username);
+            }
+            // The node the user is logged in on gives out the sequence number
+            else if(Cluster.hasRemoteUser(username)) {
+                Cluster.forwardDirectMessage(this.user, username, arguments[2]);
+                return String.valueOf(RESULT_SUCCESS) + "\n"
+                     + "-1\n"
+                     + System.currentTimeMillis();
+            }
+            else if(Main.profiles.containsKey(username)) {
+                user = User.offline(username);
+            }
+            else {
+                return String.valueOf(RESULT_UNKNOWN_USERNAME);
+            }
+            
+            SequenceCounter counter = Main.getDirectSequence(this.user.username, username);
+            long sequence = counter.next();
+            message = new Message(this.user, user, arguments[2], sequence, counter.getTimestamp());
+            
+            Main.distributeNewMessage(message);
+        }
+        
+        return String.valueOf(RESULT_SUCCESS) + "\n"
+             + message.sequence + "\n"
+             + message.timestamp;
+    }
 }
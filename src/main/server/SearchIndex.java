@@ -0,0 +1,374 @@
+package main.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <P>
+ * An inverted index of the words in the messages sent to a chat, so messages can be
+ * searched for without reading the chat's history.
+ * </P>
+ * <P>
+ * Every message in a chat is given a document number in the order it was sent. Each word
+ * has a posting list of the documents it is in, stored as the gaps between document numbers
+ * in a variable length encoding, so most entries take a single byte. The sender and time of
+ * each document are kept in arrays, so searches can be limited to a sender and a time range.
+ * </P>
+ * <P>
+ * Each chat has its own index. All indexes are updated and searched on a single background
+ * thread, so sending a message never waits for it to be indexed, and a search always sees
+ * every message sent before it.
+ * </P>
+ */
+public class SearchIndex {
+
+    /**
+     * The most results a single search can return
+     */
+    public static final int MAX_RESULTS = 100;
+    
+    /**
+     * Words longer than this are not indexed
+     */
+    private static final int MAX_WORD_LENGTH = 40;
+    
+    // Only one thread touches the indexes, so they never need to be locked
+    private static final ExecutorService indexer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * A message that matched a search
+     */
+    public static class Hit {
+        
+        /**
+         * The ID of the chat the message was sent to
+         */
+        public final int chatId;
+        
+        /**
+         * The position of the message in the chat
+         */
+        public final long sequence;
+        
+        /**
+         * The username of the sender
+         */
+        public final String from;
+        
+        /**
+         * The time the server received the message in milliseconds since the epoch
+         */
+        public final long timestamp;
+        
+        private Hit(int chatId, long sequence, String from, long timestamp) {
+            this.chatId = chatId;
+            this.sequence = sequence;
+            this.from = from;
+            this.timestamp = timestamp;
+        }
+    }
+    
+    private final int chatId;
+    
+    // Owned by the index thread
+    private final Map<String, PostingList> words = new HashMap<>();
+    private final Map<String, Integer> senderIds = new HashMap<>();
+    private final List<String> senderNames = new ArrayList<>();
+    private long[] sequences = new long[16];
+    private long[] timestamps = new long[16];
+    private int[] senders = new int[16];
+    private int size = 0;
+    
+    /**
+     * Creates an empty index for a new chat
+     * 
+     * @param chatId The ID of the chat
+     */
+    public SearchIndex(int chatId) {
+        this.chatId = chatId;
+    }
+    
+    /**
+     * Creates an index for a chat restored from a snapshot, and fills it from the chat's history in the background
+     * 
+     * @param chatId The ID of the chat
+     * @param nextSequence The sequence number that the next message will be given
+     */
+    public SearchIndex(int chatId, long nextSequence) {
+        this(chatId);
+        
+        indexer.execute(() -> {
+            try {
+                ChatHistory.readAll(chatId, nextSequence, entry -> index(entry.sequence, entry.timestamp, entry.from, entry.message));
+            }
+            catch(IOException e) {
+                System.out.println("Could not index history of chat " + chatId);
+            }
+        });
+    }
+    
+    /**
+     * Adds a message to the index in the background
+     * 
+     * @param message The message sent to the chat
+     */
+    public void add(Message message) {
+        long sequence = message.sequence;
+        long timestamp = message.timestamp;
+        String from = message.getFrom();
+        String text = message.getMessage();
+        
+        indexer.execute(() -> index(sequence, timestamp, from, text));
+    }
+    
+    /**
+     * Throws the index away when the chat is removed
+     */
+    public void clear() {
+        indexer.execute(() -> {
+            words.clear();
+            senderIds.clear();
+            senderNames.clear();
+            size = 0;
+        });
+    }
+    
+    /**
+     * Starts searching chats for messages that have all the words in a query, newest first
+     * 
+     * @param indexes The indexes of the chats to search
+     * @param query The words to look for, or an empty String to match every message
+     * @param from Only messages from this username are returned, or all if it is empty
+     * @param after Only messages sent at or after this time are returned, or all if it is negative
+     * @param before Only messages sent before this time are returned, or all if it is negative
+     * @param limit The most results to return
+     * @return The results, once the index thread gets to the search
+     */
+    public static Future<List<Hit>> search(List<SearchIndex> indexes, String query, String from, long after, long before, int limit) {
+        List<String> terms = tokenize(query);
+        int max = Math.max(0, Math.min(limit, MAX_RESULTS));
+        
+        return indexer.submit(() -> {
+            List<Hit> hits = new ArrayList<>();
+            for(SearchIndex index : indexes) {
+                index.search(terms, from, after, before, max, hits);
+            }
+            
+            // Each chat gives its newest results, so keep the newest of all of them
+            hits.sort(Comparator.comparingLong((Hit hit) -> hit.timestamp).reversed());
+            return hits.size() > max ? new ArrayList<>(hits.subList(0, max)) : hits;
+        });
+    }
+    
+    // Runs on the index thread
+    private void index(long sequence, long timestamp, String from, String text) {
+        if(size == sequences.length) {
+            sequences = Arrays.copyOf(sequences, size * 2);
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            senders = Arrays.copyOf(senders, size * 2);
+        }
+        
+        Integer sender = senderIds.get(from);
+        if(sender == null) {
+            sender = senderNames.size();
+            senderIds.put(from, sender);
+            senderNames.add(from);
+        }
+        
+        int document = size++;
+        sequences[document] = sequence;
+        timestamps[document] = timestamp;
+        senders[document] = sender;
+        
+        for(String word : tokenize(text)) {
+            words.computeIfAbsent(word, w -> new PostingList()).add(document);
+        }
+    }
+    
+    // Runs on the index thread
+    private void search(List<String> terms, String from, long after, long before, int limit, List<Hit> hits) {
+        // Times only go up, so the time range is a range of documents
+        int first = after < 0 ? 0 : firstAtOrAfter(after);
+        int last = before < 0 ? size : firstAtOrAfter(before);
+        
+        int sender = -1;
+        if(!from.isEmpty()) {
+            Integer id = senderIds.get(from);
+            if(id == null) {
+                return;
+            }
+            sender = id;
+        }
+        
+        int[] documents = null;
+        if(!terms.isEmpty()) {
+            // Start with the rarest word, so the candidates are as few as possible from the start
+            List<PostingList> lists = new ArrayList<>();
+            for(String term : terms) {
+                PostingList list = words.get(term);
+                if(list == null) {
+                    return;
+                }
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(list -> list.count));
+            
+            documents = lists.get(0).toArray();
+            for(int i = 1; i < lists.size() && documents.length > 0; i++) {
+                documents = intersect(documents, lists.get(i).toArray());
+            }
+        }
+        
+        // Walk backwards so the newest matches are found first
+        int found = 0;
+        int position = documents != null ? documents.length - 1 : last - 1;
+        while(position >= 0 && found < limit) {
+            int document = documents != null ? documents[position] : position;
+            position--;
+            
+            if(document >= last) {
+                continue;
+            }
+            if(document < first) {
+                break;
+            }
+            if(sender >= 0 && senders[document] != sender) {
+                continue;
+            }
+            
+            hits.add(new Hit(chatId, sequences[document], senderNames.get(senders[document]), timestamps[document]));
+            found++;
+        }
+    }
+    
+    private int firstAtOrAfter(long time) {
+        int low = 0;
+        int high = size;
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(timestamps[middle] < time) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        
+        return low;
+    }
+    
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        
+        while(i < a.length && j < b.length) {
+            if(a[i] < b[j]) {
+                i++;
+            }
+            else if(a[i] > b[j]) {
+                j++;
+            }
+            else {
+                result[size++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        
+        return Arrays.copyOf(result, size);
+    }
+    
+    /**
+     * Splits text into the lowercase words that are indexed, without repeats
+     * 
+     * @param text The text to split
+     * @return The words in the text
+     */
+    public static List<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        int start = -1;
+        
+        for(int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            
+            if(letter && start < 0) {
+                start = i;
+            }
+            else if(!letter && start >= 0) {
+                if(i - start <= MAX_WORD_LENGTH) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        
+        return new ArrayList<>(tokens);
+    }
+    
+    /**
+     * A list of increasing document numbers, stored as the gaps between them
+     * with 7 bits per byte and the top bit set on every byte but the last
+     */
+    private static class PostingList {
+        
+        private byte[] data = new byte[4];
+        private int length = 0;
+        private int last = 0;
+        private int count = 0;
+        
+        private void add(int document) {
+            if(length + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            
+            int gap = document - last;
+            last = document;
+            count++;
+            
+            while(gap >= 0x80) {
+                data[length++] = (byte) (gap | 0x80);
+                gap >>>= 7;
+            }
+            data[length++] = (byte) gap;
+        }
+        
+        private int[] toArray() {
+            int[] documents = new int[count];
+            int document = 0;
+            int position = 0;
+            
+            for(int i = 0; i < count; i++) {
+                int gap = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while(b < 0);
+                
+                document += gap;
+                documents[i] = document;
+            }
+            
+            return documents;
+        }
+    }
+}
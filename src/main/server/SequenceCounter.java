@@ -0,0 +1,58 @@
+package main.server;
+
+/**
+ * Gives out sequence numbers and timestamps for the messages in a conversation.
+ * Sequence numbers start at 0 and have no gaps, and timestamps never go backwards,
+ * even if the system clock does.
+ */
+public class SequenceCounter {
+
+    private long next;
+    private long timestamp;
+    
+    /**
+     * Creates a counter for a new conversation
+     */
+    public SequenceCounter() {
+        this(0, 0);
+    }
+    
+    /**
+     * Creates a counter that continues an existing conversation
+     * 
+     * @param next The next sequence number to give out
+     * @param timestamp The timestamp of the last message
+     */
+    public SequenceCounter(long next, long timestamp) {
+        this.next = next;
+        this.timestamp = timestamp;
+    }
+    
+    /**
+     * Gives out the next sequence number, and moves the timestamp to the current time
+     * 
+     * @return The sequence number for a new message
+     */
+    public long next() {
+        timestamp = Math.max(timestamp, System.currentTimeMillis());
+        return next++;
+    }
+    
+    /**
+     * Gets the timestamp of the last message given a sequence number
+     * 
+     * @return The time in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+    
+    /**
+     * Gets the sequence number that the next message will be given
+     * 
+     * @return The next sequence number
+     */
+    public long peek() {
+        return next;
+    }
+}
@@ -0,0 +1,375 @@
+package main.server;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.zip.DataFormatException;
+
+import org.zeromq.ZMQ;
+
+/**
+ * <P>
+ * Runs one server per core in a single process, each with its own main thread, so that
+ * handling requests isn't limited to one core. Every shard is a cluster node with its own
+ * users, chats, queues and folder, and the shards share users and messages over the cluster bus
+ * in the same way as nodes on different machines. Each chat is owned by one shard.
+ * </P>
+ * <P>
+ * Each shard is loaded by its own class loader, so it has its own copy of every static field and
+ * the rest of the server doesn't need to know it is sharded. Clients connect to {@code Main.ADDRESS}
+ * as usual, and each request is passed to a shard picked by the hash of its worker UUID, so a client
+ * always reaches the same shard. A login is instead sent to the shard picked by the hash of the username,
+ * so a user's profile and mailbox are always on the same shard, and so are the requests the client makes
+ * after that. Session tokens start with the shard that gave them out, so a client that reconnects with a
+ * new worker UUID and resumes is sent back to its shard too. Up to {@code MAX_ROUTES} of these are remembered, and the ones used least recently
+ * are forgotten first, so only clients that have been idle for a while can lose theirs. Messages between shards go through the bus, which only keeps
+ * ZeroMQ's high water mark of messages waiting for a shard that falls behind, so nothing between
+ * the shards can grow without limit.
+ * </P>
+ * <P>
+ * Commands from the console and the admin socket are sent to the shards. New chats are added to the
+ * shards in turn so they are spread evenly, and every other command is sent to every shard.
+ * </P>
+ * <P>
+ * Usage: ShardLauncher [shards]
+ * </P>
+ */
+public class ShardLauncher {
+
+    /**
+     * The first port the shards use on this machine. Shard i uses the 3 ports from
+     * {@code PORT + 3 * i} for requests, commands and its bus.
+     * This can be set with the server.shardPort system property.
+     */
+    public static final int PORT = Integer.getInteger("server.shardPort", 9100);
+    
+    /**
+     * The most worker UUIDs that are sent to the shard they logged in or resumed on, instead of the one their hash picks
+     */
+    public static final int MAX_ROUTES = 1 << 16;
+    
+    // Every shard reads its own address, node and folder when these classes are first loaded
+    private static final String[] SHARD_CLASSES = {"main.server.Main", "main.server.Cluster", "main.server.TcpGateway"};
+    
+    private static Thread[] shards;
+    private static ZMQ.Socket[] admins;
+    private static int nextChatShard = 0;
+    
+    // Shards for workers that logged in or resumed a session, least recently used first, only used on the main thread
+    private static final Map<String, Integer> routes = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MAX_ROUTES;
+        }
+    };
+    
+    /**
+     * Starts the shards and passes requests to them until they stop
+     * 
+     * @param args The number of shards, which is the number of cores by default
+     * @throws Exception If the shards can't be loaded
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        
+        StringBuilder nodes = new StringBuilder();
+        for(int i = 0; i < count; i++) {
+            nodes.append(i > 0 ? "," : "").append("tcp://127.0.0.1:").append(PORT + 3 * i + 2);
+        }
+        
+        URL[] classPath = classPath();
+        shards = new Thread[count];
+        for(int i = 0; i < count; i++) {
+            shards[i] = load(i, classPath, nodes.toString());
+        }
+        for(Thread shard : shards) {
+            shard.start();
+        }
+        
+        ZMQ.Context context = ZMQ.context(1);
+        
+        ZMQ.Socket front = context.socket(ZMQ.ROUTER);
+        front.bind(Main.ADDRESS);
+        
+        ZMQ.Socket admin = context.socket(ZMQ.REP);
+        admin.bind(Main.ADMIN_ADDRESS);
+        
+        ZMQ.Socket[] backs = new ZMQ.Socket[count];
+        admins = new ZMQ.Socket[count];
+        ZMQ.Poller poller = context.poller(count + 2);
+        poller.register(front, ZMQ.Poller.POLLIN);
+        poller.register(admin, ZMQ.Poller.POLLIN);
+        for(int i = 0; i < count; i++) {
+            backs[i] = context.socket(ZMQ.DEALER);
+            backs[i].connect("tcp://127.0.0.1:" + (PORT + 3 * i));
+            poller.register(backs[i], ZMQ.Poller.POLLIN);
+            
+            admins[i] = context.socket(ZMQ.REQ);
+            admins[i].connect("tcp://127.0.0.1:" + (PORT + 3 * i + 1));
+        }
+        
+        // The console is just another admin client, so only this thread ever uses the shard sockets
+        Thread console = new Thread(() -> readConsole(context));
+        console.setDaemon(true);
+        console.start();
+        
+        System.out.println("Started " + count + " shards");
+        
+        while(isRunning()) {
+            poller.poll(100);
+            
+            // Requests keep their envelope so the reply finds its way back to the client
+            if(poller.pollin(0)) {
+                List<byte[]> frames = receiveAll(front);
+                if(frames.size() >= 3) {
+                    sendAll(backs[shardOf(frames.get(2), count)], frames);
+                }
+            }
+            if(poller.pollin(1)) {
+                String command = admin.recvStr();
+                admin.send(handleCommand(command));
+            }
+            for(int i = 0; i < count; i++) {
+                if(poller.pollin(i + 2)) {
+                    sendAll(front, receiveAll(backs[i]));
+                }
+            }
+        }
+        
+        for(int i = 0; i < count; i++) {
+            backs[i].close();
+            admins[i].close();
+        }
+        admin.close();
+        front.close();
+        context.term();
+        
+        System.exit(0);
+    }
+    
+    private static Thread load(int index, URL[] classPath, String nodes) throws Exception {
+        File directory = new File(System.getProperty("server.directory", "."), "shard" + index);
+        directory.mkdirs();
+        
+        // Leave out the application class loader so the shard gets its own copy of every class
+        ClassLoader loader = new URLClassLoader(classPath, ClassLoader.getSystemClassLoader().getParent());
+        
+        // The settings are only read while the classes are loaded here, so they can be changed for each shard
+        Map<String, String> settings = new HashMap<>();
+        settings.put("server.address", "tcp://127.0.0.1:" + (PORT + 3 * index));
+        settings.put("server.adminAddress", "tcp://127.0.0.1:" + (PORT + 3 * index + 1));
+        settings.put("server.cluster.nodes", nodes);
+        settings.put("server.cluster.self", String.valueOf(index));
+        settings.put("server.directory", directory.getPath());
+        settings.put("server.tcpAddress", "");
+        
+        Map<String, String> original = new HashMap<>();
+        for(Map.Entry<String, String> setting : settings.entrySet()) {
+            original.put(setting.getKey(), System.getProperty(setting.getKey()));
+            System.setProperty(setting.getKey(), setting.getValue());
+        }
+        try {
+            for(String name : SHARD_CLASSES) {
+                Class.forName(name, true, loader);
+            }
+        }
+        finally {
+            for(Map.Entry<String, String> setting : original.entrySet()) {
+                if(setting.getValue() == null) {
+                    System.clearProperty(setting.getKey());
+                }
+                else {
+                    System.setProperty(setting.getKey(), setting.getValue());
+                }
+            }
+        }
+        
+        Class<?> main = Class.forName("main.server.Main", true, loader);
+        Thread thread = new Thread(() -> {
+            try {
+                main.getMethod("run", boolean.class).invoke(null, false);
+            }
+            catch(InvocationTargetException e) {
+                System.out.println("Shard " + index + " stopped: " + e.getCause());
+            }
+            catch(ReflectiveOperationException e) {
+                System.out.println("Could not start shard " + index + ": " + e);
+            }
+        }, "shard-" + index);
+        thread.setContextClassLoader(loader);
+        return thread;
+    }
+    
+    private static URL[] classPath() throws MalformedURLException {
+        String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+        URL[] urls = new URL[entries.length];
+        for(int i = 0; i < entries.length; i++) {
+            urls[i] = new File(entries[i]).toURI().toURL();
+        }
+        
+        return urls;
+    }
+    
+    private static int shardOf(byte[] request, int count) {
+        byte[] bytes;
+        try {
+            bytes = Compression.decompress(request);
+        }
+        catch(DataFormatException e) {
+            // The shard replies that the request is bad
+            return 0;
+        }
+        
+        // Only the worker UUID, the request code and the username of a login or token of a resume are needed
+        int workerEnd = lineEnd(bytes, 0);
+        int codeEnd = lineEnd(bytes, workerEnd + 1);
+        String worker = new String(bytes, 0, workerEnd, StandardCharsets.UTF_8);
+        String code = workerEnd < bytes.length ? new String(bytes, workerEnd + 1, codeEnd - workerEnd - 1, StandardCharsets.UTF_8) : "";
+        int hashed = Math.floorMod(worker.hashCode(), count);
+        
+        // A user always logs in on the same shard, so their profile and mailbox are only kept in one place
+        int shard = -1;
+        if(code.equals(String.valueOf(Requestor.REQUEST_LOGIN)) && codeEnd < bytes.length) {
+            String username = new String(bytes, codeEnd + 1, lineEnd(bytes, codeEnd + 1) - codeEnd - 1, StandardCharsets.UTF_8);
+            shard = Math.floorMod(username.hashCode(), count);
+        }
+        else if(code.equals(String.valueOf(Requestor.REQUEST_RESUME)) && codeEnd < bytes.length) {
+            String token = new String(bytes, codeEnd + 1, lineEnd(bytes, codeEnd + 1) - codeEnd - 1, StandardCharsets.UTF_8);
+            shard = shardOfToken(token, count);
+        }
+        
+        if(shard >= 0) {
+            if(shard == hashed) {
+                routes.remove(worker);
+            }
+            else {
+                routes.put(worker, shard);
+            }
+            return shard;
+        }
+        
+        Integer route = code.equals(String.valueOf(Requestor.REQUEST_LOGOUT)) ? routes.remove(worker) : routes.get(worker);
+        return route != null ? route : hashed;
+    }
+    
+    private static int shardOfToken(String token, int count) {
+        // Tokens from a shard are its index, a dot, then a UUID
+        int dot = token.indexOf('.');
+        try {
+            int shard = dot > 0 ? Integer.parseInt(token.substring(0, dot)) : -1;
+            return shard < count ? shard : -1;
+        }
+        catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    private static int lineEnd(byte[] bytes, int from) {
+        int i = from;
+        while(i < bytes.length && bytes[i] != '\n') {
+            i++;
+        }
+        
+        return i;
+    }
+    
+    private static String handleCommand(String line) {
+        String[] command = line.trim().split("\\s+");
+        String name = command[0].toLowerCase();
+        
+        // Spread new chats over the shards, since each shard owns the chats it adds
+        if(name.equals("/addchat") || name.equals("/addchats")) {
+            if(command.length < 2) {
+                return "";
+            }
+            
+            StringBuilder output = new StringBuilder();
+            int names = name.equals("/addchat") ? 2 : command.length;
+            for(int i = 1; i < names; i++) {
+                output.append(send(nextChatShard, "/addchat " + command[i])).append('\n');
+                nextChatShard = (nextChatShard + 1) % admins.length;
+            }
+            
+            return output.toString().trim();
+        }
+        
+        StringBuilder output = new StringBuilder();
+        for(int i = 0; i < admins.length; i++) {
+            String reply = send(i, line);
+            if(!reply.isEmpty()) {
+                output.append("Shard ").append(i).append(":\n").append(reply).append('\n');
+            }
+        }
+        
+        return output.toString().trim();
+    }
+    
+    private static String send(int shard, String command) {
+        admins[shard].send(command);
+        return admins[shard].recvStr();
+    }
+    
+    private static void readConsole(ZMQ.Context context) {
+        ZMQ.Socket socket = context.socket(ZMQ.REQ);
+        socket.connect(Main.ADMIN_ADDRESS.replace("*", "127.0.0.1"));
+        
+        Scanner sc = new Scanner(System.in);
+        while(sc.hasNextLine()) {
+            String line = sc.nextLine();
+            if(line.trim().isEmpty()) {
+                continue;
+            }
+            
+            socket.send(line);
+            String output = socket.recvStr();
+            if(output != null && !output.isEmpty()) {
+                System.out.println(output);
+            }
+            if(line.trim().equalsIgnoreCase("/stop")) {
+                break;
+            }
+        }
+        
+        sc.close();
+        socket.close();
+    }
+    
+    private static boolean isRunning() {
+        // Shards keep answering for a while after /stop, so wait for all of them to finish
+        for(Thread shard : shards) {
+            if(shard.isAlive()) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    private static List<byte[]> receiveAll(ZMQ.Socket socket) {
+        List<byte[]> frames = new ArrayList<>(4);
+        frames.add(socket.recv(0));
+        while(socket.hasReceiveMore()) {
+            frames.add(socket.recv(0));
+        }
+        
+        return frames;
+    }
+    
+    private static void sendAll(ZMQ.Socket socket, List<byte[]> frames) {
+        for(int i = 0; i < frames.size() - 1; i++) {
+            socket.sendMore(frames.get(i));
+        }
+        socket.send(frames.get(frames.size() - 1), 0);
+    }
+}
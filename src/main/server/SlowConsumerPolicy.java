@@ -0,0 +1,22 @@
+package main.server;
+
+/**
+ * What to do when a user has more queued for them than {@code User.BUDGET} allows
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Throw away the oldest queued messages until the user is back under budget
+     */
+    DROP_OLDEST,
+    
+    /**
+     * Move queued messages into the user's mailbox, which writes them to disk
+     */
+    SPILL,
+    
+    /**
+     * Throw away everything queued and log the user out, telling the client to reload everything
+     */
+    DISCONNECT
+}
@@ -0,0 +1,216 @@
+package main.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <P>
+ * A copy of the server state that should survive a restart: the chats and their members, the sequence
+ * counters for direct messages used recently, and the profile of every user that has logged in.
+ * </P>
+ * <P>
+ * A snapshot is taken on the main thread, which only copies references, and can then be
+ * written on any thread. The file is a small binary format that is written to a temporary
+ * file first, so a crash while saving never leaves a broken snapshot behind.
+ * </P>
+ */
+public class Snapshot {
+
+    /**
+     * The file snapshots are saved to and loaded from.
+     * This can be set with the server.snapshotFile system property.
+     */
+    public static final File FILE = Main.file(System.getProperty("server.snapshotFile", "snapshot.dat"));
+    
+    /**
+     * Milliseconds between snapshots while the server is running, or 0 to only save on /stop.
+     * This can be set with the server.snapshotInterval system property.
+     */
+    public static final long INTERVAL = Long.getLong("server.snapshotInterval", 60000);
+    
+    private static final int MAGIC = 0x4E555053;
+    private static final int VERSION = 1;
+    
+    // Chats
+    private final int[] chatIds;
+    private final String[] chatNames;
+    private final long[] chatSequences;
+    private final long[] chatTimestamps;
+    private final String[][] chatMembers;
+    
+    // Direct message sequence counters
+    private final String[] directKeys;
+    private final long[] directSequences;
+    private final long[] directTimestamps;
+    
+    // Profiles, the pictures themselves are already saved in the blob store
+    private final String[] usernames;
+    private final String[] nicknames;
+    private final String[] pictures;
+    
+    /**
+     * Takes a snapshot of the server. This must only be called on the main thread.
+     * 
+     * @return The snapshot
+     */
+    public static Snapshot take() {
+        Main.forgetIdleDirectSequences();
+        return new Snapshot(Main.chats, Main.getDirectSequences(), Main.profiles);
+    }
+    
+    private Snapshot(List<ChatRoom> chats, Map<String, SequenceCounter> direct, Map<String, Profile> profiles) {
+        chatIds = new int[chats.size()];
+        chatNames = new String[chats.size()];
+        chatSequences = new long[chats.size()];
+        chatTimestamps = new long[chats.size()];
+        chatMembers = new String[chats.size()][];
+        
+        for(int i = 0; i < chats.size(); i++) {
+            ChatRoom chat = chats.get(i);
+            chatIds[i] = chat.id;
+            chatNames[i] = chat.name;
+            chatSequences[i] = chat.sequence.peek();
+            chatTimestamps[i] = chat.sequence.getTimestamp();
+            chatMembers[i] = chat.members.toArray(new String[0]);
+        }
+        
+        directKeys = new String[direct.size()];
+        directSequences = new long[direct.size()];
+        directTimestamps = new long[direct.size()];
+        
+        int i = 0;
+        for(Map.Entry<String, SequenceCounter> entry : direct.entrySet()) {
+            directKeys[i] = entry.getKey();
+            directSequences[i] = entry.getValue().peek();
+            directTimestamps[i] = entry.getValue().getTimestamp();
+            i++;
+        }
+        
+        usernames = new String[profiles.size()];
+        nicknames = new String[profiles.size()];
+        pictures = new String[profiles.size()];
+        
+        i = 0;
+        for(Profile profile : profiles.values()) {
+            usernames[i] = profile.username;
+            nicknames[i] = profile.nickname;
+            pictures[i] = profile.picture;
+            i++;
+        }
+    }
+    
+    /**
+     * Writes the snapshot to a file, replacing the old one only once it is complete
+     * 
+     * @param file The file to write to
+     * @throws IOException If the snapshot couldn't be written
+     */
+    public void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            
+            out.writeInt(chatIds.length);
+            for(int i = 0; i < chatIds.length; i++) {
+                out.writeInt(chatIds[i]);
+                out.writeUTF(chatNames[i]);
+                out.writeLong(chatSequences[i]);
+                out.writeLong(chatTimestamps[i]);
+                
+                out.writeInt(chatMembers[i].length);
+                for(String member : chatMembers[i]) {
+                    out.writeUTF(member);
+                }
+            }
+            
+            out.writeInt(directKeys.length);
+            for(int i = 0; i < directKeys.length; i++) {
+                out.writeUTF(directKeys[i]);
+                out.writeLong(directSequences[i]);
+                out.writeLong(directTimestamps[i]);
+            }
+            
+            out.writeInt(usernames.length);
+            for(int i = 0; i < usernames.length; i++) {
+                out.writeUTF(usernames[i]);
+                out.writeUTF(nicknames[i]);
+                
+                // An empty hash means there is no picture
+                out.writeUTF(pictures[i] != null ? pictures[i] : "");
+            }
+        }
+        
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Loads a snapshot into the server. This must be called on the main thread before any requests are handled.
+     * 
+     * @param file The file to load from
+     * @return Whether a snapshot was loaded
+     * @throws IOException If the snapshot exists but couldn't be read
+     */
+    public static boolean restore(File file) throws IOException {
+        if(!file.exists()) {
+            return false;
+        }
+        
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException("Not a snapshot file");
+            }
+            
+            if(in.readInt() != VERSION) {
+                throw new IOException("Snapshot is from a different version");
+            }
+            
+            int chats = in.readInt();
+            List<ChatRoom> restored = new ArrayList<>(chats);
+            for(int i = 0; i < chats; i++) {
+                ChatRoom chat = new ChatRoom(in.readInt(), in.readUTF(), in.readLong(), in.readLong());
+                
+                int members = in.readInt();
+                for(int j = 0; j < members; j++) {
+                    chat.members.add(in.readUTF());
+                }
+                
+                restored.add(chat);
+            }
+            
+            int direct = in.readInt();
+            for(int i = 0; i < direct; i++) {
+                Main.getDirectSequences().put(in.readUTF(), new SequenceCounter(in.readLong(), in.readLong()));
+            }
+            
+            int profiles = in.readInt();
+            for(int i = 0; i < profiles; i++) {
+                String username = in.readUTF();
+                String nickname = in.readUTF();
+                String picture = in.readUTF();
+                
+                // An empty hash means there is no picture
+                Main.profiles.put(username, new Profile(username, nickname, picture.isEmpty() ? null : picture));
+            }
+            
+            // Only add the chats once the whole file was read
+            for(ChatRoom chat : restored) {
+                Main.addChat(chat);
+            }
+        }
+        
+        return true;
+    }
+}
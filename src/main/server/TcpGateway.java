@@ -0,0 +1,463 @@
+package main.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <P>
+ * Lets clients that can't use ZeroMQ send the same requests over a plain TCP connection.
+ * This is only used when {@code ADDRESS} is set.
+ * </P>
+ * <P>
+ * Each message is made of frames, and each frame is a 4 byte big-endian length followed by
+ * that many bytes. If the highest bit of the length is set, another frame of the same message
+ * follows, which is how uploads send their data and downloads get theirs, like the second
+ * ZeroMQ frame. A request is exactly what would be sent over ZeroMQ, and the reply is exactly
+ * what would come back. A client may send more requests before the replies arrive, and the
+ * replies are always sent in the order of the requests.
+ * </P>
+ * <P>
+ * A few selector threads share the connections, so there is no thread for each client. They
+ * only read and write frames, and every request is handled on the main thread in the same way as
+ * requests from ZeroMQ. A connection only has one request in {@code RequestLanes} at a time, so its
+ * requests are never reordered by their lanes. A connection that has {@code MAX_PIPELINED} requests waiting isn't
+ * parsed or read from until some replies go out, and a frame's buffer only grows as its bytes arrive, so neither a client
+ * that never reads nor one that only sends lengths can fill the memory.
+ * </P>
+ */
+public class TcpGateway {
+
+    /**
+     * The host and port to listen on, such as 0.0.0.0:8745, or an empty String to not listen.
+     * This can be set with the server.tcpAddress system property.
+     */
+    public static final String ADDRESS = System.getProperty("server.tcpAddress", "");
+    
+    /**
+     * The number of selector threads.
+     * This can be set with the server.tcpThreads system property.
+     */
+    public static final int THREADS = Math.max(1, Integer.getInteger("server.tcpThreads", 2));
+    
+    /**
+     * The largest frame a client can send, larger ones close the connection.
+     * This fits one upload chunk or the largest compressed request, with room for the request line.
+     */
+    public static final int MAX_FRAME = Math.max(BlobStore.CHUNK_SIZE, Compression.MAX_REQUEST) + 1024;
+    
+    /**
+     * The most requests from one connection waiting for a reply before it stops being read from
+     */
+    public static final int MAX_PIPELINED = 16;
+    
+    // Set on the length of every frame except the last in a message
+    private static final int MORE = 0x80000000;
+    
+    private static final int READ_BUFFER = 64 * 1024;
+    
+    // The size a frame's buffer starts at, before it has grown to the length the client sent
+    private static final int FIRST_FRAME_BUFFER = 1024;
+    
+    private static ServerSocketChannel server;
+    private static Loop[] loops;
+    private static int nextLoop = 0;
+    
+    /**
+     * Starts listening for connections, unless there is no address
+     * 
+     * @throws IOException If the address can't be listened on
+     */
+    public static void start() throws IOException {
+        if(ADDRESS.isEmpty()) {
+            return;
+        }
+        
+        int colon = ADDRESS.lastIndexOf(':');
+        String host = ADDRESS.substring(0, colon);
+        int port = Integer.parseInt(ADDRESS.substring(colon + 1));
+        
+        server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(host.isEmpty() || host.equals("*") ? new InetSocketAddress(port) : new InetSocketAddress(host, port));
+        server.configureBlocking(false);
+        
+        loops = new Loop[THREADS];
+        for(int i = 0; i < THREADS; i++) {
+            loops[i] = new Loop();
+        }
+        
+        // The first thread also takes new connections
+        server.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        
+        for(int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(loops[i], "tcp-gateway-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        
+        System.out.println("Listening for TCP clients on " + server.getLocalAddress());
+    }
+    
+    /**
+     * Closes every connection and stops the selector threads
+     */
+    public static void stop() {
+        if(loops == null) {
+            return;
+        }
+        
+        for(Loop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        
+        try {
+            server.close();
+        }
+        catch(IOException e) {
+            System.out.println("Could not close TCP gateway: " + e.getMessage());
+        }
+    }
+    
+    private static class Loop implements Runnable {
+        
+        final Selector selector;
+        volatile boolean running = true;
+        
+        // Connections accepted by the first thread, and connections the main thread replied to
+        final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        final Queue<Connection> replied = new ConcurrentLinkedQueue<>();
+        
+        // Every connection on this thread reads into the same buffer, which is outside the heap so reading doesn't copy
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);
+        
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+        
+        @Override
+        public void run() {
+            try {
+                while(running) {
+                    selector.select();
+                    
+                    SocketChannel channel;
+                    while((channel = accepted.poll()) != null) {
+                        Connection connection = new Connection(this, channel);
+                        try {
+                            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                        }
+                        catch(IOException e) {
+                            connection.close();
+                        }
+                    }
+                    
+                    Connection connection;
+                    while((connection = replied.poll()) != null) {
+                        connection.write();
+                    }
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        
+                        if(!key.isValid()) {
+                            continue;
+                        }
+                        if(key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        
+                        Connection ready = (Connection) key.attachment();
+                        if(key.isReadable()) {
+                            ready.read();
+                        }
+                        if(key.isValid() && key.isWritable()) {
+                            ready.write();
+                        }
+                    }
+                }
+            }
+            catch(IOException e) {
+                System.out.println("TCP gateway stopped: " + e.getMessage());
+            }
+            finally {
+                for(SelectionKey key : selector.keys()) {
+                    if(key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+                
+                try {
+                    selector.close();
+                }
+                catch(IOException e) {
+                    System.out.println("Could not close TCP gateway selector: " + e.getMessage());
+                }
+            }
+        }
+        
+        private void accept() {
+            SocketChannel channel;
+            while((channel = acceptNext()) != null) {
+                
+                // Give the connections out in turn so each thread has about the same number
+                Loop loop = loops[nextLoop];
+                nextLoop = (nextLoop + 1) % loops.length;
+                loop.accepted.add(channel);
+                loop.selector.wakeup();
+            }
+        }
+        
+        private SocketChannel acceptNext() {
+            SocketChannel channel = null;
+            try {
+                channel = server.accept();
+                if(channel != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                }
+                return channel;
+            }
+            catch(IOException e) {
+                // Running out of file descriptors shouldn't stop the connections that are already open
+                System.out.println("Could not accept TCP client: " + e.getMessage());
+                if(channel != null) {
+                    try {
+                        channel.close();
+                    }
+                    catch(IOException closeException) {
+                        // The connection is gone either way
+                    }
+                }
+                return null;
+            }
+        }
+    }
+    
+    // A whole request read from a connection
+    private static class Pending {
+        
+        final byte[] request;
+        final byte[] payload;
+        final long received;
+        
+        Pending(byte[] request, byte[] payload, long received) {
+            this.request = request;
+            this.payload = payload;
+            this.received = received;
+        }
+    }
+    
+    private static class Connection {
+        
+        final Loop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+        volatile boolean closed = false;
+        
+        // The frame being read, after its length has been read
+        int header = 0;
+        int headerRead = 0;
+        byte[] frame;
+        int frameLength = 0;
+        int frameRead = 0;
+        final List<byte[]> frames = new ArrayList<>(2);
+        
+        // Requests for the main thread, and whether it is handling one, which only it uses
+        final Queue<Pending> requests = new ConcurrentLinkedQueue<>();
+        boolean handling = false;
+        
+        // Replies from the main thread, then the frames waiting to be written
+        final Queue<byte[][]> replies = new ConcurrentLinkedQueue<>();
+        final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+        int pipelined = 0;
+        
+        // Bytes that were read but not parsed yet, because too many requests were waiting
+        ByteBuffer leftover;
+        
+        Connection(Loop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+        
+        void read() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            
+            try {
+                if(channel.read(buffer) < 0) {
+                    close();
+                    return;
+                }
+            }
+            catch(IOException e) {
+                close();
+                return;
+            }
+            
+            buffer.flip();
+            parse(buffer);
+            
+            // Bytes after the last request that fits are kept until replies go out, since the shared buffer is reused
+            if(!closed && buffer.hasRemaining()) {
+                leftover = ByteBuffer.allocate(buffer.remaining());
+                leftover.put(buffer).flip();
+            }
+            
+            if(!closed && (pipelined >= MAX_PIPELINED || leftover != null)) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+        
+        // Reads frames until the buffer is used up or too many requests are waiting for replies
+        void parse(ByteBuffer buffer) {
+            while(buffer.hasRemaining() && pipelined < MAX_PIPELINED) {
+                if(headerRead < 4) {
+                    header = header << 8 | (buffer.get() & 0xFF);
+                    if(++headerRead < 4) {
+                        continue;
+                    }
+                    
+                    frameLength = header & ~MORE;
+                    if(frameLength > MAX_FRAME) {
+                        close();
+                        return;
+                    }
+                    frame = new byte[Math.min(frameLength, FIRST_FRAME_BUFFER)];
+                    frameRead = 0;
+                }
+                
+                // Only make room for bytes that actually arrived, however long the client said the frame is
+                if(frameRead == frame.length) {
+                    frame = Arrays.copyOf(frame, (int) Math.min(frameLength, 2L * frame.length));
+                }
+                
+                int length = Math.min(buffer.remaining(), frame.length - frameRead);
+                buffer.get(frame, frameRead, length);
+                frameRead += length;
+                
+                if(frameRead == frameLength) {
+                    // Like ZeroMQ, anything after the upload frame is ignored, so it isn't kept either
+                    if(frames.size() < 2) {
+                        frames.add(frame);
+                    }
+                    boolean more = (header & MORE) != 0;
+                    header = 0;
+                    headerRead = 0;
+                    frame = null;
+                    
+                    if(!more) {
+                        dispatch();
+                    }
+                }
+            }
+        }
+        
+        void dispatch() {
+            byte[] request = frames.get(0);
+            byte[] payload = frames.size() > 1 ? frames.get(1) : null;
+            frames.clear();
+            long received = System.nanoTime();
+            pipelined++;
+            
+            requests.add(new Pending(request, payload, received));
+            Main.post(this::submit);
+        }
+        
+        void submit() {
+            // Requests from one connection go to their lanes one at a time, so they are handled and replied to in order
+            Pending next;
+            if(handling || (next = requests.poll()) == null) {
+                return;
+            }
+            
+            handling = true;
+            RequestLanes.add(next.request, next.payload, next.received, reply -> {
+                replies.add(reply);
+                loop.replied.add(this);
+                loop.selector.wakeup();
+                
+                handling = false;
+                submit();
+            });
+        }
+        
+        void write() {
+            if(closed) {
+                return;
+            }
+            
+            byte[][] reply;
+            while((reply = replies.poll()) != null) {
+                pipelined--;
+                for(int i = 0; i < reply.length; i++) {
+                    ByteBuffer length = ByteBuffer.allocate(4);
+                    length.putInt(reply[i].length | (i < reply.length - 1 ? MORE : 0)).flip();
+                    output.add(length);
+                    output.add(ByteBuffer.wrap(reply[i]));
+                }
+            }
+            
+            try {
+                // Write as much as the socket takes, the rest waits until it can take more
+                if(!output.isEmpty()) {
+                    channel.write(output.toArray(new ByteBuffer[output.size()]));
+                    while(!output.isEmpty() && !output.peek().hasRemaining()) {
+                        output.poll();
+                    }
+                }
+            }
+            catch(IOException e) {
+                close();
+                return;
+            }
+            
+            // Requests that were already read come before anything still on the socket
+            if(leftover != null && pipelined < MAX_PIPELINED) {
+                parse(leftover);
+                if(closed) {
+                    return;
+                }
+                if(!leftover.hasRemaining()) {
+                    leftover = null;
+                }
+            }
+            
+            int interest = output.isEmpty() ? 0 : SelectionKey.OP_WRITE;
+            if(pipelined < MAX_PIPELINED && leftover == null) {
+                interest |= SelectionKey.OP_READ;
+            }
+            key.interestOps(interest);
+        }
+        
+        void close() {
+            closed = true;
+            if(key != null) {
+                key.cancel();
+            }
+            
+            try {
+                channel.close();
+            }
+            catch(IOException e) {
+                // The connection is gone either way
+            }
+        }
+    }
+}
@@ -7,22 +7,56 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Base64.Decoder;
 import java.util.Base64.Encoder;
+import java.util.Iterator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 /**
  * Holds data for each user, including queued messages and updates
  */
 public class User {
+
+    /**
+     * The most bytes that can be queued for a user before {@code POLICY} is applied.
+     * Messages kept in the user's mailbox don't count, since the mailbox writes them to disk.
+     * This can be set with the server.userBudget system property.
+     */
+    public static final long BUDGET = Long.getLong("server.userBudget", 4 * 1024 * 1024);
+    
+    /**
+     * What to do when a user goes over {@code BUDGET}.
+     * This can be set with the server.slowConsumerPolicy system property.
+     */
+    public static final SlowConsumerPolicy POLICY = SlowConsumerPolicy.valueOf(System.getProperty("server.slowConsumerPolicy", "SPILL").toUpperCase());
+    
+    /**
+     * The estimated number of bytes used by a single queued update
+     */
+    public static final int UPDATE_SIZE = 48;
+    
+    /**
+     * The most client message IDs remembered for each user, so a resent message isn't sent twice.
+     * This can be set with the server.sentReplies system property.
+     */
+    public static final int SENT_REPLIES = Integer.getInteger("server.sentReplies", 256);
+    
+    /**
+     * The most pixels an uploaded picture can have, so a small file can't decode to a huge image
+     */
+    public static final long MAX_PICTURE_PIXELS = 4096 * 4096;
     
     /**
-     * The requester that logged in as this user
+     * The requester that logged in as this user.
+     * This changes when another requester resumes the user's session.
      */
-    public final Requestor requestor;
+    public Requestor requestor;
     
     /**
      * The unique username of the user
@@ -35,9 +69,16 @@ public class User {
     public String nickname;
     
     /**
-     * The user's profile picture
+     * The data kept for the user's username after they log out, including their profile picture.
+     * This is {@code null} for offline placeholder users.
      */
-    public BufferedImage image;
+    public final Profile profile;
+    
+    /**
+     * The token a client can use to resume this user's session after reconnecting,
+     * or {@code null} for offline placeholder users
+     */
+    public String sessionToken;
     
     // Updates to return when requested
     /**
@@ -52,10 +93,32 @@ public class User {
     public final Map<ChatRoom, List<Integer>> chatUpdates = new HashMap<>();
     
     /**
-     * The user updates that the user has received but the client has not taken.
-     * The int is a constant in {@code Requester} that starts with CHANGE_*
+     * The typing and read events sent to the user that the client has not taken
      */
-    public final Map<User, List<Integer>> userUpdates = new HashMap<>();
+    public final EventSlots events = new EventSlots();
+    
+    /**
+     * The epoch of the first update in {@code Main.presence} that the client has not taken
+     */
+    public long presenceCursor;
+    
+    /**
+     * The replies to the newest messages the user sent with a client message ID, by that ID.
+     * This is kept with the user rather than the requester so it survives a resumed session.
+     */
+    public final Map<String, String> sentReplies = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > SENT_REPLIES;
+        }
+    };
+    
+    // Only changed on the main thread, volatile so the console can read them for metrics
+    private volatile long messageBytes = 0;
+    private volatile long updateBytes = 0;
+    private boolean resyncRequired = false;
     
     /**
      * Creates a new user object
@@ -65,10 +128,47 @@ public class User {
      * @param nickname The nickname of the user
      */
     public User(Requestor requestor, String username, String nickname) {
+        this(requestor, username, nickname, Main.getProfile(username));
+        profile.nickname = nickname;
+    }
+    
+    private User(Requestor requestor, String username, String nickname, Profile profile) {
         this.requestor = requestor;
         this.username = username;
         
         this.nickname = nickname;
+        this.profile = profile;
+    }
+    
+    /**
+     * Creates a placeholder for a user that isn't logged in,
+     * so messages to and from them can still be kept
+     * 
+     * @param username The username of the user
+     * @return The placeholder user
+     */
+    public static User offline(String username) {
+        return new User(null, username, username, null);
+    }
+    
+    /**
+     * Checks whether the user went over budget under {@code SlowConsumerPolicy.DISCONNECT},
+     * and needs to log in again and reload everything
+     * 
+     * @return Whether the user has to resync
+     */
+    public boolean isResyncRequired() {
+        return resyncRequired;
+    }
+    
+    /**
+     * Gets the estimated number of bytes queued for the user.
+     * This can be called from any thread.
+     * 
+     * @return The bytes used by queued messages and updates
+     */
+    public long getQueuedBytes() {
+        return messageBytes + updateBytes;
     }
     
     /**
@@ -77,19 +177,60 @@ public class User {
      * @param message The message to queue
      */
     public void addQueuedMessage(Message message) {
-        messages.add(message);
+        if(resyncRequired) {
+            return;
+        }
+        
+        // The queue or mailbox holds on to the message until the client takes it
+        message.retain();
+        
+        // Messages still in the mailbox are older, so this one has to wait behind them
+        if(Main.hasMailbox(username)) {
+            Main.getMailbox(username).add(message);
+        }
+        else {
+            messages.add(message);
+            messageBytes += message.getSize();
+            checkBudget();
+        }
+    }
+    
+    /**
+     * Takes the first batch of messages kept while the user was offline
+     */
+    public void loadMailbox() {
+        takeFromMailbox();
+    }
+    
+    /**
+     * Puts all messages the client has not taken back into the mailbox,
+     * so they are not lost when the user logs out or is kicked
+     */
+    public void storeMessages() {
+        if(!messages.isEmpty()) {
+            Main.getMailbox(username).requeue(messages);
+            messages.clear();
+            messageBytes = 0;
+        }
     }
     
     /**
      * Gets the message to send to the client,
-     * then removes it from the queue
+     * then removes it from the queue.
+     * The message must be released once the reply has been made.
      * 
      * @return The message to send
      */
     public Message getAndRemoveMessage() {
+        // Take the next batch from the mailbox once the queue is empty
+        if(messages.isEmpty()) {
+            takeFromMailbox();
+        }
+        
         // Remove the message so the requester doesn't get it twice
         Message m = messages.get(0);
         messages.remove(0);
+        messageBytes -= m.getSize();
         return m;
     }
     
@@ -100,12 +241,18 @@ public class User {
      * @param update The update to the chat
      */
     public void addQueudChatUpdate(ChatRoom chat, int update) {
+        if(resyncRequired) {
+            return;
+        }
+        
         // Add update to queue for requester to request
         if(!chatUpdates.containsKey(chat)) {
             chatUpdates.put(chat, new ArrayList<>());
         }
         
         chatUpdates.get(chat).add(update);
+        updateBytes += UPDATE_SIZE;
+        checkBudget();
     }
     
     /**
@@ -118,74 +265,162 @@ public class User {
         // Remove the chat update so the requester doesn't get it twice
         Map.Entry<ChatRoom, List<Integer>> updates = chatUpdates.entrySet().iterator().next();
         chatUpdates.remove(updates.getKey());
+        updateBytes -= UPDATE_SIZE * updates.getValue().size();
         return updates;
     }
     
-    /**
-     * Queues a user update to be given to requester when requested
-     * 
-     * @param user The user to queue
-     * @param update The update to the user
-     */
-    public void addQueudUserUpdate(User user, int update) {
-        // Add update to queue for requester to request
-        if(!userUpdates.containsKey(user)) {
-            userUpdates.put(user, new ArrayList<>());
+    private void takeFromMailbox() {
+        if(!Main.hasMailbox(username)) {
+            return;
         }
         
-        userUpdates.get(user).add(update);
+        int start = messages.size();
+        Main.getMailbox(username).drainTo(messages, Mailbox.DRAIN_SIZE);
+        Main.removeMailboxIfEmpty(username);
+        
+        for(int i = start; i < messages.size(); i++) {
+            messageBytes += messages.get(i).getSize();
+        }
     }
     
-    /**
-     * Gets the user update to send to the client,
-     * then removes it from the queue
-     * 
-     * @return The user update to send
-     */
-    public Map.Entry<User, List<Integer>> getAndRemoveUserUpdate() {
-        // Remove the user update so the requester doesn't get it twice
-        Map.Entry<User, List<Integer>> updates = userUpdates.entrySet().iterator().next();
-        userUpdates.remove(updates.getKey());
-        return updates;
+    private void checkBudget() {
+        if(getQueuedBytes() <= BUDGET) {
+            return;
+        }
+        
+        Metrics.budgetExceeded.incrementAndGet();
+        
+        switch(POLICY) {
+            case DROP_OLDEST: {
+                while(getQueuedBytes() > BUDGET && !messages.isEmpty()) {
+                    Message message = messages.remove(0);
+                    messageBytes -= message.getSize();
+                    message.release();
+                    Metrics.messagesDropped.incrementAndGet();
+                }
+                break;
+            }
+            case SPILL: {
+                // The mailbox writes messages to disk once it has too many in memory
+                if(!Main.hasMailbox(username)) {
+                    Mailbox mailbox = Main.getMailbox(username);
+                    for(Message message : messages) {
+                        mailbox.add(message);
+                    }
+                    
+                    Metrics.messagesSpilled.addAndGet(messages.size());
+                    messages.clear();
+                    messageBytes = 0;
+                }
+                break;
+            }
+            case DISCONNECT: {
+                break;
+            }
+        }
+        
+        // Updates can't be dropped or spilled without the client missing changes, so it has to start over
+        if(getQueuedBytes() > BUDGET) {
+            Metrics.messagesDropped.addAndGet(messages.size());
+            Metrics.slowConsumersDisconnected.incrementAndGet();
+            
+            for(Message message : messages) {
+                message.release();
+            }
+            messages.clear();
+            chatUpdates.clear();
+            messageBytes = 0;
+            updateBytes = 0;
+            resyncRequired = true;
+        }
     }
     
     /**
-     * Encodes an image to a Base64 String to send over the network
+     * Encodes a picture to a Base64 String to send over the network
      * 
-     * @param image The image to encode
+     * @param picture The PNG data of the picture
      * @return The Base64 encoded String
-     * 
-     * @throws IOException If the image couldn't be encoded properly
      */
-    public static String encodeToString(BufferedImage image) throws IOException {
-        // Turns an image into a String Base64 that can be send over the network and read back into an image
+    public static String encodeToString(byte[] picture) {
+        // Turns a picture into a String Base64 that can be send over the network and read back into an image
+        Object event = Flight.beginPicture();
         Encoder encoder = Base64.getEncoder();
-        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-        ImageIO.write(image, "png", bytesOut);
-        byte[] bytes = bytesOut.toByteArray();
-        bytesOut.close();
+        String encoded = encoder.encodeToString(picture);
+        Flight.endPicture(event, "encode", picture.length);
         
-        return encoder.encodeToString(bytes);
+        return encoded;
     }
     
     /**
-     * Decodes an image from a Base64 String received over the network
+     * Decodes a picture from a Base64 String received over the network,
+     * and turns it into PNG data so it only has to be encoded once
      * 
      * @param imageString The String to decode
-     * @return The decoded image
+     * @return The PNG data of the picture
      * 
      * @throws IOException If the image couldn't be decoded properly
      */
-    public static BufferedImage decodeImage(String imageString) throws IOException {
+    public static byte[] decodePicture(String imageString) throws IOException {
         // Turns a Base64 String received over the network to an image
-        BufferedImage image = null;
         byte[] imageData;
         Decoder decoder = Base64.getDecoder();
-        imageData = decoder.decode(imageString);
-        ByteArrayInputStream bytesIn = new ByteArrayInputStream(imageData);
-        image = ImageIO.read(bytesIn);
-        bytesIn.close();
+        try {
+            imageData = decoder.decode(imageString);
+        }
+        catch(IllegalArgumentException e) {
+            throw new IOException(e);
+        }
+        
+        return convertPicture(imageData);
+    }
+    
+    /**
+     * Checks that data is an image, and turns it into PNG data.
+     * This can take a while for a large picture, so it can be called from any thread.
+     * 
+     * @param imageData The image in any format ImageIO can read
+     * @return The PNG data of the picture
+     * 
+     * @throws IOException If the data isn't an image, has more than {@code MAX_PICTURE_PIXELS} pixels,
+     *                     or is bigger than {@code BlobStore.MAX_SIZE} as a PNG
+     */
+    public static byte[] convertPicture(byte[] imageData) throws IOException {
+        Object event = Flight.beginPicture();
+        BufferedImage image = null;
+        
+        try(ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if(!readers.hasNext()) {
+                throw new IOException("Unknown image format");
+            }
+            
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                
+                // A small file can claim a huge size, so check it before any pixels are decoded
+                if((long) reader.getWidth(0) * reader.getHeight(0) > MAX_PICTURE_PIXELS) {
+                    throw new IOException("Picture is too large");
+                }
+                
+                image = reader.read(0);
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+        
+        // Store every picture as PNG so clients always get the same format
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", bytesOut);
+        bytesOut.close();
+        
+        // A picture can get much bigger as a PNG, and it still has to fit in a blob
+        if(bytesOut.size() > BlobStore.MAX_SIZE) {
+            throw new IOException("Picture is too large");
+        }
         
-        return image;
+        Flight.endPicture(event, "decode", imageData.length);
+        return bytesOut.toByteArray();
     }
 }
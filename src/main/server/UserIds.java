@@ -0,0 +1,51 @@
+package main.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <P>
+ * Gives every username a small number, so messages can refer to users with an int
+ * instead of holding on to a {@code User} or a {@code String}.
+ * </P>
+ * <P>
+ * Numbers are given out in order from 0 and are never reused, so a number always refers
+ * to the same username while the server is running. They are not saved, so they must not
+ * be written to disk. This must only be used on the main thread.
+ * </P>
+ */
+public class UserIds {
+
+    private static final Map<String, Integer> ids = new HashMap<>();
+    private static final List<String> usernames = new ArrayList<>();
+    
+    /**
+     * Gets the number for a username, giving it one if it doesn't have one yet
+     * 
+     * @param username The username
+     * @return The number for the username
+     */
+    public static int of(String username) {
+        Integer id = ids.get(username);
+        if(id == null) {
+            id = usernames.size();
+            ids.put(username, id);
+            usernames.add(username);
+        }
+        
+        return id;
+    }
+    
+    /**
+     * Gets the username a number was given to
+     * 
+     * @param id The number from {@code of}
+     * @return The username
+     * @throws IndexOutOfBoundsException If no username has that number
+     */
+    public static String username(int id) throws IndexOutOfBoundsException {
+        return usernames.get(id);
+    }
+}